@@ -0,0 +1,74 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the bytes the logging thread allocates per Logger call, first in
+ * the default synchronous mode and then in asynchronous mode, and fails if
+ * an asynchronous call allocates anything at steady state. Uses the
+ * HotSpot per-thread allocation counter. It writes ./logs, so run it from a
+ * scratch directory:
+ *
+ *   javac -d out src/*.java bench/LogAllocationCheck.java
+ *   java -cp out LogAllocationCheck
+ */
+public class LogAllocationCheck {
+    private static final int WARMUP = 200_000;
+    private static final int CALLS = 100_000;
+
+    public static void main(String[] args) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.err.println("Per-thread allocation counting is not supported by this JVM");
+            System.exit(2);
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        PrintStream console = System.out;
+        // The sink echoes every entry to stdout; keep that out of the way
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+
+        Logger logger = Logger.getInstance();
+        double sync = bytesPerCall(threads, logger);
+        logger.enableAsync(8192, OverflowPolicy.BLOCK, 16);
+        double async = bytesPerCall(threads, logger);
+        logger.flush();
+
+        System.setOut(console);
+        System.out.printf("synchronous:  %.1f bytes per call%n", sync);
+        System.out.printf("asynchronous: %.1f bytes per call%n", async);
+        if (async >= 1.0) {
+            System.out.println("FAIL: asynchronous logging allocates on the calling thread");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static double bytesPerCall(com.sun.management.ThreadMXBean threads, Logger logger) {
+        String filename = "IMG_0001.jpg";
+        long thread = Thread.currentThread().getId();
+        for (int i = 0; i < WARMUP; i++) {
+            logEvent(logger, filename, i);
+        }
+        logger.flush();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < CALLS; i++) {
+            logEvent(logger, filename, i);
+        }
+        long after = threads.getThreadAllocatedBytes(thread);
+        return (double) (after - before) / (2L * CALLS);
+    }
+
+    // The shapes the application logs most: an object and a long argument
+    private static void logEvent(Logger logger, String filename, long i) {
+        logger.log("PhotoRepository", "Photo saved: {}", filename);
+        logger.log("ImageProcessor", "Resize took {} ms", i);
+    }
+}
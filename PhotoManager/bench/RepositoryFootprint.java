@@ -0,0 +1,88 @@
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Measures the heap PhotoRepository retains per photo: everything it holds
+ * after recovering a journal of synthetic photos (table, indexes and symbol
+ * tables), not just the photo records. The journal is written first, so the
+ * number excludes the journal's own buffers. It creates ./data, so run it
+ * from an empty scratch directory:
+ *
+ *   javac -d out src/*.java bench/RepositoryFootprint.java
+ *   java -Xmx2g -cp out RepositoryFootprint [photos]
+ *
+ * Add -Dphotomanager.photo.store=mapped to measure the mapped backend.
+ */
+public class RepositoryFootprint {
+    private static final int AUTHORS = 500;
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        File dir = new File(WriteAheadLog.DATA_PATH);
+        if (dir.exists()) {
+            System.err.println(dir + " already exists; run from an empty scratch directory");
+            System.exit(2);
+        }
+        Logger.getInstance();
+
+        // Snapshots disabled: the whole data set stays in one log segment
+        WriteAheadLog<Photo> writer = new WriteAheadLog<>(dir, "photos", new PhotoRecordCodec(),
+                Collections::<Photo>emptyList, Integer.MAX_VALUE);
+        writer.recover(photo -> { }, photoId -> { });
+        for (int i = 0; i < count; i++) {
+            writer.appendSave(photo(i));
+        }
+        writer.close();
+
+        long before = usedHeap();
+        PhotoRepository repository = PhotoRepository.getInstance();
+        long after = usedHeap();
+        if (repository.count() != count) {
+            System.err.println("Recovered " + repository.count() + " of " + count + " photos");
+            System.exit(1);
+        }
+        System.out.printf("%d photos, %.0f bytes per photo retained by PhotoRepository%n",
+                count, (double) (after - before) / count);
+        System.exit(0);
+    }
+
+    // Shaped like an upload: a few hundred authors, three hashtags drawn
+    // from a small vocabulary, a distinct file name and description
+    private static Photo photo(int i) {
+        String author = String.format("USER_17000000%05d", i % AUTHORS);
+        Photo photo = new Photo();
+        photo.setPhotoId(String.format("PHOTO_17%011d", i));
+        photo.setFilename(String.format("IMG_2024%07d.jpg", i));
+        photo.setDescription("Sunset over the old town harbour " + i % 100);
+        photo.setHashtags(new ArrayList<>(Arrays.asList("travel", "city" + i % 40, "summer")));
+        photo.setAuthorId(author);
+        photo.setAuthorName("tourist" + i % AUTHORS);
+        photo.setUploadDateTime(LocalDateTime.of(2024, 1, 1, 0, 0).plusSeconds(37L * i));
+        photo.setFileSize(1_000_000 + i);
+        photo.setFormat("JPEG");
+        photo.setWidth(4000);
+        photo.setHeight(3000);
+        photo.setStoragePath("./photos/" + author + "/" + photo.getFilename());
+        photo.setThumbnailPath("./photos/" + author + "/thumbnails/" + photo.getFilename());
+        return photo;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
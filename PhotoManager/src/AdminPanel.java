@@ -1,13 +1,22 @@
 import javax.swing.*;
 import javax.swing.table.*;
+import javax.swing.text.BadLocationException;
 import java.awt.*;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 /**
  * Admin Panel - Administrator Features
  */
 class AdminPanel extends JFrame {
+    private static final int LOG_VIEW_LINES = 500;
+    private static final int LOG_PAGE_SIZE = 200;
     private User adminUser;
+    private long logCursor;
     private JTabbedPane tabbedPane;
     
     public AdminPanel(JFrame parent, User adminUser) {
@@ -132,10 +141,9 @@ class AdminPanel extends JFrame {
         logsArea.setEditable(false);
         logsArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
         
-        List<String> logs = Logger.getInstance().getLogs();
-        for (String log : logs) {
-            logsArea.append(log + "\n");
-        }
+        // Start from the most recent entries; refreshes only append newer ones
+        logCursor = Math.max(-1, Logger.getInstance().getLastSeq() - LOG_VIEW_LINES);
+        appendNewLogs(logsArea);
         
         JScrollPane scrollPane = new JScrollPane(logsArea);
         panel.add(scrollPane, BorderLayout.CENTER);
@@ -143,32 +151,101 @@ class AdminPanel extends JFrame {
         // Refresh button
         JPanel buttonPanel = new JPanel();
         JButton refreshBtn = new JButton("Refresh");
-        refreshBtn.addActionListener(e -> {
-            logsArea.setText("");
-            List<String> newLogs = Logger.getInstance().getLogs();
-            for (String log : newLogs) {
-                logsArea.append(log + "\n");
-            }
-        });
+        refreshBtn.addActionListener(e -> appendNewLogs(logsArea));
         buttonPanel.add(refreshBtn);
+        JButton auditBtn = new JButton("Audit...");
+        auditBtn.addActionListener(e -> showAudit());
+        buttonPanel.add(auditBtn);
         panel.add(buttonPanel, BorderLayout.SOUTH);
         
         return panel;
     }
     
+    /**
+     * Audit query over the archived and live log: one actor's (or everyone's)
+     * entries of the last few days, of which the latest LOG_VIEW_LINES are shown.
+     */
+    private void showAudit() {
+        String actor = JOptionPane.showInputDialog(this, "Actor (user ID, empty for everyone):");
+        if (actor == null) {
+            return;
+        }
+        String days = JOptionPane.showInputDialog(this, "Days back:", "7");
+        if (days == null) {
+            return;
+        }
+        LocalDateTime from;
+        try {
+            from = LocalDateTime.now().minusDays(Long.parseLong(days.trim()));
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(this, "Invalid number of days", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        String who = actor.trim().isEmpty() ? null : actor.trim();
+        // Archives are decompressed to answer, so read them off the event thread
+        CompletableFuture.supplyAsync(() -> {
+            Deque<String> lines = new ArrayDeque<>();
+            try (Stream<LogEntry> entries = Logger.getInstance().streamAudit(from, null, who)) {
+                entries.forEach(entry -> {
+                    if (lines.size() == LOG_VIEW_LINES) {
+                        lines.removeFirst();
+                    }
+                    lines.addLast(entry.format());
+                });
+            }
+            return String.join("\n", lines);
+        }).thenAcceptAsync(text -> {
+            JTextArea auditArea = new JTextArea(text.isEmpty() ? "No matching entries" : text, 25, 80);
+            auditArea.setEditable(false);
+            auditArea.setFont(new Font("Monospaced", Font.PLAIN, 12));
+            JOptionPane.showMessageDialog(this, new JScrollPane(auditArea), "Audit", JOptionPane.PLAIN_MESSAGE);
+        }, SwingUtilities::invokeLater);
+    }
+    
+    private void appendNewLogs(JTextArea logsArea) {
+        Logger logger = Logger.getInstance();
+        // Anything older than the last LOG_VIEW_LINES entries would be trimmed anyway
+        logCursor = Math.max(logCursor, logger.getLastSeq() - LOG_VIEW_LINES);
+        StringBuilder text = new StringBuilder();
+        int pages = 0;
+        LogPage page;
+        do {
+            page = logger.tailLogs(logCursor, LOG_PAGE_SIZE);
+            for (LogEntry entry : page.getEntries()) {
+                text.append(entry.format()).append('\n');
+            }
+            logCursor = page.getCursor();
+        } while (page.hasMore() && !page.getEntries().isEmpty() && ++pages * LOG_PAGE_SIZE < LOG_VIEW_LINES);
+        if (text.length() == 0) {
+            return;
+        }
+        logsArea.append(text.toString());
+        
+        // The text always ends with a newline, which adds one empty line
+        int excess = logsArea.getLineCount() - 1 - LOG_VIEW_LINES;
+        if (excess > 0) {
+            try {
+                logsArea.getDocument().remove(0, logsArea.getLineStartOffset(excess));
+            } catch (BadLocationException e) {
+                // Nothing to trim
+            }
+        }
+        logsArea.setCaretPosition(logsArea.getDocument().getLength());
+    }
+    
     private JPanel createStatisticsPanel() {
         JPanel panel = new JPanel(new GridLayout(0, 2, 10, 10));
         panel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
         
         List<User> users = UserRepository.getInstance().findAll();
-        List<Photo> photos = PhotoRepository.getInstance().findAll();
+        int photoCount = PhotoRepository.getInstance().count();
         
         // Total statistics
         panel.add(new JLabel("Total Users:"));
         panel.add(new JLabel(String.valueOf(users.size())));
         
         panel.add(new JLabel("Total Photos:"));
-        panel.add(new JLabel(String.valueOf(photos.size())));
+        panel.add(new JLabel(String.valueOf(photoCount)));
         
         // User type breakdown
         long admins = users.stream().filter(u -> u.getUserType() == UserType.ADMINISTRATOR).count();
@@ -195,7 +272,7 @@ class AdminPanel extends JFrame {
         panel.add(new JLabel(String.valueOf(goldUsers)));
         
         // Total storage
-        long totalStorage = photos.stream().mapToLong(Photo::getFileSize).sum();
+        long totalStorage = PhotoRepository.getInstance().totalFileSize();
         panel.add(new JLabel("Total Storage Used:"));
         panel.add(new JLabel(formatFileSize(totalStorage)));
         
@@ -205,13 +282,13 @@ class AdminPanel extends JFrame {
     private void showUserDetails(String userId) {
         User user = UserRepository.getInstance().findById(userId);
         if (user != null) {
-            List<Photo> userPhotos = PhotoRepository.getInstance().findByAuthor(userId);
-            List<String> userLogs = Logger.getInstance().getLogsByUser(userId);
+            int userPhotoCount = PhotoRepository.getInstance().countByAuthor(userId);
+            long userLogCount = Logger.getInstance().countLogsByUser(userId);
             
             String info = String.format(
                 "User: %s\nEmail: %s\nType: %s\nPackage: %s\nTotal Photos: %d\nTotal Actions: %d",
                 user.getUsername(), user.getEmail(), user.getUserType(), 
-                user.getSubscriptionPackage(), userPhotos.size(), userLogs.size()
+                user.getSubscriptionPackage(), userPhotoCount, userLogCount
             );
             
             JOptionPane.showMessageDialog(this, info, "User Details", JOptionPane.INFORMATION_MESSAGE);
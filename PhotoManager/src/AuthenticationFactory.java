@@ -23,7 +23,9 @@ class LocalAuthService implements AuthenticationService {
             .subscriptionPackage(pkg)
             .authProvider(AuthProvider.LOCAL)
             .build();
-        UserRepository.getInstance().save(user);
+        if (!UserRepository.getInstance().save(user)) {
+            return null;
+        }
         return user;
     }
     
@@ -49,7 +51,9 @@ class GoogleAuthService implements AuthenticationService {
             .subscriptionPackage(pkg)
             .authProvider(AuthProvider.GOOGLE)
             .build();
-        UserRepository.getInstance().save(user);
+        if (!UserRepository.getInstance().save(user)) {
+            return null;
+        }
         return user;
     }
     
@@ -75,7 +79,9 @@ class GithubAuthService implements AuthenticationService {
             .subscriptionPackage(pkg)
             .authProvider(AuthProvider.GITHUB)
             .build();
-        UserRepository.getInstance().save(user);
+        if (!UserRepository.getInstance().save(user)) {
+            return null;
+        }
         return user;
     }
     
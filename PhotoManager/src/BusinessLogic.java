@@ -1,47 +1,204 @@
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.io.File;
 import java.awt.image.BufferedImage;
-import javax.imageio.ImageIO;
 
 /**
  * Observer Pattern for Logging - Singleton Logger
+ * Entries are structured LogEntry records kept in a rolling LogSegmentStore
+ * under ./logs, which holds only a small tail in memory, indexes the
+ * segments by actor and time and archives old ones. Writes synchronously
+ * unless asynchronous mode is enabled (enableAsync or
+ * -Dphotomanager.log.async=true); then log() only publishes into a bounded
+ * LogRingBuffer and a single consumer thread formats and writes the entries.
+ * Only the asynchronous path is allocation-free for the caller; a synchronous
+ * log() renders and stores its entry before returning, roughly a kilobyte
+ * per call (bench/LogAllocationCheck measures both).
  */
 class Logger {
-    private static Logger instance;
-    private List<String> logs;
+    private LogSegmentStore store;
+    private volatile LogRingBuffer ringBuffer;
+
+    private static class Holder {
+        private static final Logger INSTANCE = new Logger();
+    }
 
     private Logger() {
-        logs = new ArrayList<>();
+        store = new LogSegmentStore(new File(LogSegmentStore.LOG_PATH),
+                Long.getLong("photomanager.log.segmentBytes", 4L << 20),
+                Long.getLong("photomanager.log.segmentMillis", 60L * 60 * 1000),
+                Integer.getInteger("photomanager.log.maxSegments", 20),
+                Long.getLong("photomanager.log.retentionMillis", 7L * 24 * 60 * 60 * 1000),
+                Long.getLong("photomanager.log.archiveRetentionMillis", 180L * 24 * 60 * 60 * 1000),
+                Integer.getInteger("photomanager.log.tailSize", 1000));
+        if (Boolean.getBoolean("photomanager.log.async")) {
+            OverflowPolicy policy;
+            try {
+                policy = OverflowPolicy.valueOf(System.getProperty("photomanager.log.overflow", "BLOCK"));
+            } catch (IllegalArgumentException e) {
+                policy = OverflowPolicy.BLOCK;
+            }
+            enableAsync(Integer.getInteger("photomanager.log.bufferSize", 8192), policy,
+                    Integer.getInteger("photomanager.log.sampleRate", 16));
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "log-shutdown"));
     }
 
     public static Logger getInstance() {
-        if (instance == null) {
-            instance = new Logger();
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Switches to asynchronous logging. Events published while the buffer is
+     * full are handled according to policy; SAMPLE keeps one in sampleRate.
+     */
+    public synchronized void enableAsync(int capacity, OverflowPolicy policy, int sampleRate) {
+        if (ringBuffer != null) {
+            return;
         }
-        return instance;
+        LogRingBuffer buffer = new LogRingBuffer(capacity, policy, sampleRate, this::write);
+        buffer.start();
+        ringBuffer = buffer;
+    }
+
+    public boolean isAsync() {
+        return ringBuffer != null;
     }
 
     public void log(String actor, String action) {
-        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
-        String logEntry = String.format("[%s] %s: %s", timestamp, actor, action);
-        logs.add(logEntry);
-        System.out.println(logEntry);
+        publish(actor, null, action, LogFormatter.TEXT, null, null, 0, 0);
+    }
+
+    /**
+     * Parameterized variants: each {} in the template is replaced by the next
+     * argument, but only once a sink needs the text. Prefer these on hot
+     * paths over concatenating the message at the call site.
+     */
+    public void log(String actor, String template, Object arg1) {
+        publish(actor, null, template, LogFormatter.OBJECTS, arg1, null, 0, 0);
+    }
+
+    public void log(String actor, String template, Object arg1, Object arg2) {
+        publish(actor, null, template, LogFormatter.OBJECTS, arg1, arg2, 0, 0);
+    }
+
+    public void log(String actor, String template, long arg1) {
+        publish(actor, null, template, LogFormatter.LONGS, null, null, arg1, 0);
+    }
+
+    public void log(String actor, String template, long arg1, long arg2) {
+        publish(actor, null, template, LogFormatter.LONGS, null, null, arg1, arg2);
+    }
+
+    /**
+     * Logs an action concerning a photo, so it can be traced by photoId.
+     */
+    public void logPhoto(String actor, String photoId, String action) {
+        publish(actor, photoId, action, LogFormatter.TEXT, null, null, 0, 0);
+    }
+
+    public void logPhoto(String actor, String photoId, String template, Object arg1) {
+        publish(actor, photoId, template, LogFormatter.OBJECTS, arg1, null, 0, 0);
+    }
+
+    // In asynchronous mode nothing is allocated here: the raw template and
+    // arguments go into a pre-allocated ring slot and are rendered by the consumer
+    private void publish(String actor, String photoId, String template, byte kind,
+                         Object arg1, Object arg2, long num1, long num2) {
+        long timestamp = System.currentTimeMillis();
+        LogRingBuffer buffer = ringBuffer;
+        if (buffer != null) {
+            buffer.publish(timestamp, actor, photoId, template, kind, arg1, arg2, num1, num2);
+        } else {
+            write(timestamp, actor, LogFormatter.render(template, kind, arg1, arg2, num1, num2), photoId);
+        }
+    }
+
+    /**
+     * Number of events discarded because the asynchronous buffer was full.
+     */
+    public long getDroppedCount() {
+        LogRingBuffer buffer = ringBuffer;
+        return buffer == null ? 0 : buffer.getDroppedCount();
+    }
+
+    /**
+     * Waits until all events logged so far have been written.
+     */
+    public void flush() {
+        LogRingBuffer buffer = ringBuffer;
+        if (buffer != null) {
+            buffer.flush();
+        }
+    }
+
+    private void write(long timestamp, String actor, String action, String photoId) {
+        LogEntry entry = store.append(timestamp, actor, action, photoId);
+        System.out.println(entry.format());
+    }
+
+    private void shutdown() {
+        LogRingBuffer buffer = ringBuffer;
+        if (buffer != null) {
+            buffer.stop();
+        }
+        store.close();
     }
 
-    public List<String> getLogs() {
-        return new ArrayList<>(logs);
+    /**
+     * Entries logged by exactly this actor, read through the actor index.
+     */
+    public Stream<LogEntry> streamEntriesByActor(String actor) {
+        flush();
+        return store.streamByActor(actor);
+    }
+
+    /**
+     * Audit query over the archived and the live log, oldest first; a null
+     * bound leaves that side open and a null actor matches everyone.
+     */
+    public Stream<LogEntry> streamAudit(LocalDateTime from, LocalDateTime to, String actor) {
+        flush();
+        ZoneId zone = ZoneId.systemDefault();
+        return store.streamAudit(from == null ? Long.MIN_VALUE : from.atZone(zone).toInstant().toEpochMilli(),
+                to == null ? Long.MAX_VALUE : to.atZone(zone).toInstant().toEpochMilli(), actor);
+    }
+
+    public Stream<String> streamLogsByUser(String userId) {
+        return streamEntriesByActor(userId).map(LogEntry::format);
+    }
+
+    /**
+     * Cursor-based tail: up to limit entries logged after afterSeq. Start
+     * from getLastSeq() (or -1 for the oldest retained entry) and pass each
+     * page's cursor to the next call.
+     */
+    public LogPage tailLogs(long afterSeq, int limit) {
+        flush();
+        return store.tail(afterSeq, limit);
+    }
+
+    public long getLastSeq() {
+        flush();
+        return store.lastSeq();
+    }
+
+    public long countLogsByUser(String userId) {
+        flush();
+        return store.countByActor(userId);
     }
 
     public List<String> getLogsByUser(String userId) {
-        List<String> userLogs = new ArrayList<>();
-        for (String log : logs) {
-            if (log.contains(userId)) {
-                userLogs.add(log);
-            }
+        try (Stream<String> logs = streamLogsByUser(userId)) {
+            return logs.collect(Collectors.toList());
         }
-        return userLogs;
     }
 }
 
@@ -49,19 +206,28 @@ class Logger {
  * Facade Pattern - Simplifies complex business logic
  */
 class PhotoManagementFacade {
+    // Generates missing thumbnails once per process, behind the UI
+    private static final AtomicBoolean BACKFILL_STARTED = new AtomicBoolean();
+    private static final ExecutorService BACKFILL = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "thumbnail-backfill");
+        t.setDaemon(true);
+        return t;
+    });
     private PhotoRepository photoRepo;
     private UserRepository userRepo;
     private StorageStrategy storageStrategy;
+    private DerivativeService derivatives;
 
     public PhotoManagementFacade() {
         this.photoRepo = PhotoRepository.getInstance();
         this.userRepo = UserRepository.getInstance();
         // Default to local storage
-        this.storageStrategy = new LocalStorageStrategy();
+        setStorageStrategy(new LocalStorageStrategy());
     }
 
     public void setStorageStrategy(StorageStrategy strategy) {
         this.storageStrategy = strategy;
+        this.derivatives = DerivativeService.of(strategy);
     }
 
     public Photo uploadPhoto(User user, File file, String description, List<String> hashtags,
@@ -73,12 +239,57 @@ class PhotoManagementFacade {
         }
 
         try {
-            // Process image
-            BufferedImage image = ImageIO.read(file);
-            BufferedImage processed = processor.process(image);
+            // Dimensions and format come from the header alone
+            ImageHeader header = ImageHeader.read(file);
+            if (header == null) {
+                Logger.getInstance().log(user.getUserId(), "Upload failed: {} is not a readable image", file.getName());
+                return null;
+            }
+            String rejection = rejectionOf(file, header, processor);
+            if (rejection != null) {
+                Logger.getInstance().log(user.getUserId(), "Upload failed: {}", rejection);
+                return null;
+            }
+
+            // Process image, decoding it only if a filter was selected. Over
+            // MAX_PIXELS it is processed in bands, and a chain that keeps the
+            // full size is only applied while the result is encoded
+            BufferedImage processed = null;
+            BandedProcessing streamed = null;
+            if (!ImageProcessingPipeline.isIdentity(processor)) {
+                if (header.pixels() <= ImageReaders.MAX_PIXELS) {
+                    processed = ImageProcessingPipeline.run(processor, ImageReaders.decode(file));
+                } else {
+                    BandedProcessing banded = BandedProcessing.of(processor, header);
+                    if (banded.isStreamed()) {
+                        streamed = banded;
+                    } else {
+                        processed = banded.process(file);
+                    }
+                }
+                if (processed == null && streamed == null) {
+                    Logger.getInstance().log(user.getUserId(), "Upload failed: {} could not be processed", file.getName());
+                    return null;
+                }
+            }
 
-            // Upload to storage
-            String storagePath = storageStrategy.upload(file, user.getUserId());
+            // Upload to storage; a processed image is encoded straight into it
+            String storagePath;
+            String format = header.format;
+            if (processed != null || streamed != null) {
+                if (!ImageEncoders.canWrite(format)) {
+                    format = "PNG";
+                }
+                storagePath = storageStrategy.upload(file.getName(), user.getUserId(),
+                        processed != null ? ImageEncoders.of(processed, format) : streamed.encoder(file, format));
+            } else {
+                storagePath = storageStrategy.upload(file, user.getUserId());
+            }
+            if (storagePath == null) {
+                Logger.getInstance().log(user.getUserId(), "Upload failed: {} could not be stored", file.getName());
+                return null;
+            }
+            File stored = storageStrategy.download(storagePath);
 
             // Create photo entity
             Photo photo = new Photo();
@@ -88,51 +299,203 @@ class PhotoManagementFacade {
             photo.setHashtags(hashtags);
             photo.setAuthorId(user.getUserId());
             photo.setAuthorName(user.getUsername());
-            photo.setFileSize(file.length());
+            photo.setFileSize(stored != null && stored.isFile() ? stored.length() : file.length());
+            photo.setFormat(format);
+            photo.setWidth(processed != null ? processed.getWidth() : header.width);
+            photo.setHeight(processed != null ? processed.getHeight() : header.height);
             photo.setStoragePath(storagePath);
+            BufferedImage thumbnail;
+            if (processed != null) {
+                thumbnail = ThumbnailGenerator.scale(processed);
+            } else if (streamed != null) {
+                // Only the stored copy has the filters applied
+                thumbnail = stored != null && stored.isFile() ? ThumbnailGenerator.generate(stored) : null;
+            } else {
+                thumbnail = ThumbnailGenerator.generate(file);
+            }
+            photo.setThumbnailPath(storeThumbnail(thumbnail, file.getName(), user.getUserId()));
 
             // Save to repository
-            photoRepo.save(photo);
+            if (!photoRepo.save(photo)) {
+                storageStrategy.delete(storagePath);
+                if (photo.getThumbnailPath() != null) {
+                    storageStrategy.delete(photo.getThumbnailPath());
+                }
+                Logger.getInstance().log(user.getUserId(), "Upload failed: {} could not be saved", file.getName());
+                return null;
+            }
 
-            Logger.getInstance().log(user.getUserId(), "Photo uploaded: " + photo.getFilename());
+            Logger.getInstance().logPhoto(user.getUserId(), photo.getPhotoId(), "Photo uploaded: {}", photo.getFilename());
             return photo;
         } catch (Exception e) {
-            Logger.getInstance().log(user.getUserId(), "Upload failed: " + e.getMessage());
+            Logger.getInstance().log(user.getUserId(), "Upload failed: {}", e.getMessage());
             return null;
         }
     }
 
     public List<Photo> searchPhotos(PhotoSearchCriteria criteria) {
-        List<Photo> allPhotos = photoRepo.findAll();
-        List<Photo> filtered = new ArrayList<>();
-
-        for (Photo photo : allPhotos) {
-            if (criteria.matches(photo)) {
-                filtered.add(photo);
-            }
-        }
+        // Start from the most selective index and probe the others per candidate
+        List<Photo> filtered = new PhotoQueryPlanner(photoRepo).plan(criteria).execute();
 
         Logger.getInstance().log("System", "Photo search performed");
         return filtered;
     }
 
+    /**
+     * Runs the search and returns its plan with estimated and actual row counts.
+     */
+    public String explainSearch(PhotoSearchCriteria criteria) {
+        PhotoQueryPlan plan = new PhotoQueryPlanner(photoRepo).plan(criteria);
+        plan.execute();
+        return plan.explain();
+    }
+
     public void updatePhoto(User user, String photoId, String newDescription, List<String> newHashtags) {
         Photo photo = photoRepo.findById(photoId);
         if (photo != null && canModify(user, photo)) {
             photo.setDescription(newDescription);
             photo.setHashtags(newHashtags);
-            photoRepo.save(photo);
-            Logger.getInstance().log(user.getUserId(), "Photo updated: " + photoId);
+            if (photoRepo.save(photo)) {
+                Logger.getInstance().logPhoto(user.getUserId(), photoId, "Photo updated: {}", photoId);
+            }
         }
     }
 
     public void deletePhoto(User user, String photoId) {
         Photo photo = photoRepo.findById(photoId);
-        if (photo != null && canModify(user, photo)) {
+        // The files go only once the deletion is durable
+        if (photo != null && canModify(user, photo) && photoRepo.delete(photoId)) {
             storageStrategy.delete(photo.getStoragePath());
-            photoRepo.delete(photoId);
-            Logger.getInstance().log(user.getUserId(), "Photo deleted: " + photoId);
+            if (photo.getThumbnailPath() != null) {
+                storageStrategy.delete(photo.getThumbnailPath());
+            }
+            derivatives.evict(photo);
+            Logger.getInstance().logPhoto(user.getUserId(), photoId, "Photo deleted: {}", photoId);
+        }
+    }
+
+    /**
+     * The photo scaled to size, generated in the background on first use.
+     */
+    public CompletableFuture<File> requestDerivative(Photo photo, DerivativeSize size) {
+        return derivatives.request(photo, size);
+    }
+
+    /**
+     * The stored file to download: the original if size is null, otherwise
+     * that derivative, which may first have to be generated. Completes with
+     * null if it is not available.
+     */
+    public CompletableFuture<File> download(User user, Photo photo, DerivativeSize size) {
+        CompletableFuture<File> file = size == null
+                ? CompletableFuture.completedFuture(storageStrategy.download(photo.getStoragePath()))
+                : derivatives.request(photo, size).exceptionally(e -> {
+                    Logger.getInstance().logPhoto("Derivatives", photo.getPhotoId(), "Derivative failed: {}", e.getMessage());
+                    return null;
+                });
+        return file.thenApply(downloaded -> {
+            if (downloaded != null) {
+                Logger.getInstance().logPhoto(user.getUserId(), photo.getPhotoId(), "Downloaded photo: {}",
+                        downloaded.getPath());
+            }
+            return downloaded;
+        });
+    }
+
+    /**
+     * The photo's thumbnail, or null if it has none (yet) or it cannot be read.
+     * Decodes the stored file, so call it off the event dispatch thread.
+     */
+    public BufferedImage loadThumbnail(Photo photo) {
+        if (photo.getThumbnailPath() == null) {
+            return null;
+        }
+        try {
+            File file = storageStrategy.download(photo.getThumbnailPath());
+            return file != null && file.isFile() ? ImageReaders.decode(file) : null;
+        } catch (Exception e) {
+            Logger.getInstance().logPhoto("Thumbnails", photo.getPhotoId(), "Thumbnail unreadable: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Generates thumbnails for stored photos that have none, on a background
+     * thread. Runs at most once per process; onUpdate runs on that thread
+     * after the pass if any thumbnail was added.
+     */
+    public void backfillThumbnails(Runnable onUpdate) {
+        if (!BACKFILL_STARTED.compareAndSet(false, true)) {
+            return;
+        }
+        BACKFILL.submit(() -> {
+            int created = 0;
+            for (Photo photo : photoRepo.scanAll()) {
+                if (photo.getThumbnailPath() != null || photo.getStoragePath() == null) {
+                    continue;
+                }
+                File original = storageStrategy.download(photo.getStoragePath());
+                if (original == null || !original.isFile()) {
+                    continue;
+                }
+                String thumbnailPath = storeThumbnail(ThumbnailGenerator.generate(original),
+                        photo.getFilename(), photo.getAuthorId());
+                if (thumbnailPath == null) {
+                    continue;
+                }
+                // Re-read so an edit made meanwhile is not overwritten
+                Photo current = photoRepo.findById(photo.getPhotoId());
+                if (current == null) {
+                    storageStrategy.delete(thumbnailPath);
+                    continue;
+                }
+                current.setThumbnailPath(thumbnailPath);
+                if (!photoRepo.save(current)) {
+                    storageStrategy.delete(thumbnailPath);
+                    continue;
+                }
+                created++;
+            }
+            Logger.getInstance().log("Thumbnails", "Backfilled {} thumbnails", created);
+            if (created > 0 && onUpdate != null) {
+                onUpdate.run();
+            }
+        });
+    }
+
+    private String storeThumbnail(BufferedImage thumbnail, String filename, String userId) {
+        return thumbnail == null ? null : storageStrategy.uploadThumbnail(filename, userId,
+                ImageEncoders.of(thumbnail, ImageEncoders.formatOf(filename)));
+    }
+
+    /**
+     * Why file cannot be uploaded by user with processor applied, in words
+     * for the user, or null if it can.
+     */
+    public String checkUpload(User user, File file, ImageProcessor processor) {
+        if (!checkUploadLimits(user, file)) {
+            return "The upload exceeds the limits of the " + user.getSubscriptionPackage() + " package.";
+        }
+        ImageHeader header = ImageHeader.read(file);
+        return header == null ? file.getName() + " is not a readable image." : rejectionOf(file, header, processor);
+    }
+
+    // Over MAX_PIXELS filters run band by band, which not every chain allows;
+    // a larger image is never stored downsampled in place of the original
+    private static String rejectionOf(File file, ImageHeader header, ImageProcessor processor) {
+        if (header.pixels() > ImageReaders.MAX_DECLARED_PIXELS) {
+            return String.format("%s declares %dx%d pixels, over the %d MP limit.",
+                    file.getName(), header.width, header.height, ImageReaders.MAX_DECLARED_PIXELS / 1_000_000);
+        }
+        if (header.pixels() > ImageReaders.MAX_PIXELS && !ImageProcessingPipeline.isIdentity(processor)
+                && BandedProcessing.of(processor, header) == null) {
+            return String.format("%s is %dx%d (%d MP); over %d MP filters are applied in bands, and these "
+                            + "need the whole image. Resize it to at most %d MP first, or upload it without "
+                            + "filters to keep it at full size.", file.getName(), header.width, header.height,
+                    header.pixels() / 1_000_000, ImageReaders.MAX_PIXELS / 1_000_000,
+                    ImageReaders.MAX_PIXELS / 1_000_000);
         }
+        return null;
     }
 
     private boolean checkUploadLimits(User user, File file) {
@@ -144,8 +507,8 @@ class PhotoManagementFacade {
         }
 
         // Check total photos limit
-        List<Photo> userPhotos = photoRepo.findByAuthor(user.getUserId());
-        if (pkg.getMaxTotalPhotos() != -1 && userPhotos.size() >= pkg.getMaxTotalPhotos()) {
+        int userPhotoCount = photoRepo.countByAuthor(user.getUserId());
+        if (pkg.getMaxTotalPhotos() != -1 && userPhotoCount >= pkg.getMaxTotalPhotos()) {
             return false;
         }
 
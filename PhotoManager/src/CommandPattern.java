@@ -35,6 +35,10 @@ class UploadPhotoCommand implements Command {
         uploadedPhoto = facade.uploadPhoto(user, file, description, hashtags, processor);
     }
     
+    public Photo getUploadedPhoto() {
+        return uploadedPhoto;
+    }
+    
     @Override
     public void undo() {
         if (uploadedPhoto != null) {
@@ -175,6 +179,26 @@ class PhotoSearchCriteria {
         return true;
     }
     
+    public boolean hasHashtags() {
+        return hashtags != null && !hashtags.isEmpty();
+    }
+    
+    public boolean hasDateRange() {
+        return startDate != null || endDate != null;
+    }
+    
+    public boolean hasSizeRange() {
+        return minSize != null || maxSize != null;
+    }
+    
+    public long getMinSizeOrDefault() { return minSize != null ? minSize : 0L; }
+    public long getMaxSizeOrDefault() { return maxSize != null ? maxSize : Long.MAX_VALUE; }
+    
+    public List<String> getHashtags() { return hashtags; }
+    public LocalDateTime getStartDate() { return startDate; }
+    public LocalDateTime getEndDate() { return endDate; }
+    public String getAuthor() { return author; }
+    
     // Setters
     public void setHashtags(List<String> hashtags) { this.hashtags = hashtags; }
     public void setMinSize(Long minSize) { this.minSize = minSize; }
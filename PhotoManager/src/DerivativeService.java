@@ -0,0 +1,245 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Named sizes a photo can be served at, by their longest edge in pixels.
+ */
+enum DerivativeSize {
+    SMALL(256), MEDIUM(1024), LARGE(2048);
+
+    final int pixels;
+
+    DerivativeSize(int pixels) {
+        this.pixels = pixels;
+    }
+
+    @Override
+    public String toString() {
+        return pixels + " px";
+    }
+}
+
+/**
+ * Scaled copies of stored photos, generated on first request and kept in
+ * storage. A size is generated from the nearest larger derivative already
+ * stored, or from a subsampled decode of the original, and never enlarges.
+ * Concurrent requests for the same photo and size share one generation.
+ * Stored derivatives are evicted least recently used first once they exceed
+ * a byte budget (-Dphotomanager.derivatives.budgetBytes, default 512 MB).
+ * The index is rebuilt from the storage's derivative files when a service
+ * starts, in order of last use, which a hit records as the file's
+ * modification time. There is one service per storage.
+ */
+class DerivativeService {
+    private static final long DEFAULT_BUDGET = Long.getLong("photomanager.derivatives.budgetBytes", 512L * 1024 * 1024);
+    private static final String DERIVATIVE_DIR = "derivatives/";
+
+    private final StorageStrategy storage;
+    private final long budgetBytes;
+    // Stored derivatives by key, in access order; guarded by this
+    private final LinkedHashMap<String, Stored> stored = new LinkedHashMap<>(64, 0.75f, true);
+    private long storedBytes;
+    private final Map<String, CompletableFuture<File>> inFlight = new ConcurrentHashMap<>();
+    private final ExecutorService workers = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "derivatives");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final Map<StorageStrategy, DerivativeService> SERVICES = new ConcurrentHashMap<>();
+
+    private static class Stored {
+        final String path;
+        final long bytes;
+
+        Stored(String path, long bytes) {
+            this.path = path;
+            this.bytes = bytes;
+        }
+    }
+
+    DerivativeService(StorageStrategy storage, long budgetBytes) {
+        this.storage = storage;
+        this.budgetBytes = budgetBytes;
+        rebuild();
+    }
+
+    /**
+     * The service for derivatives kept in storage.
+     */
+    public static DerivativeService of(StorageStrategy storage) {
+        return SERVICES.computeIfAbsent(storage, s -> new DerivativeService(s, DEFAULT_BUDGET));
+    }
+
+    /**
+     * The photo at size, or the original if that is no larger; completes
+     * with null if the original cannot be read.
+     */
+    public CompletableFuture<File> request(Photo photo, DerivativeSize size) {
+        if (fitsWithin(photo, size.pixels)) {
+            return CompletableFuture.completedFuture(original(photo));
+        }
+        String key = keyOf(photo, size);
+        File cached = lookup(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        CompletableFuture<File> created = new CompletableFuture<>();
+        CompletableFuture<File> running = inFlight.putIfAbsent(key, created);
+        if (running != null) {
+            return running;
+        }
+        workers.execute(() -> {
+            try {
+                File file = generate(photo, size);
+                inFlight.remove(key, created);
+                created.complete(file);
+            } catch (Throwable t) {
+                inFlight.remove(key, created);
+                created.completeExceptionally(t);
+            }
+        });
+        return created;
+    }
+
+    /**
+     * Deletes every stored derivative of the photo.
+     */
+    public void evict(Photo photo) {
+        for (DerivativeSize size : DerivativeSize.values()) {
+            Stored entry;
+            synchronized (this) {
+                entry = stored.remove(keyOf(photo, size));
+                if (entry != null) {
+                    storedBytes -= entry.bytes;
+                }
+            }
+            if (entry != null) {
+                storage.delete(entry.path);
+            }
+        }
+    }
+
+    private File generate(Photo photo, DerivativeSize size) throws Exception {
+        long start = System.nanoTime();
+        BufferedImage source = null;
+        // The nearest larger stored derivative is much cheaper to decode than the original
+        for (DerivativeSize larger : DerivativeSize.values()) {
+            if (larger.pixels <= size.pixels) {
+                continue;
+            }
+            File file = lookup(keyOf(photo, larger));
+            source = file == null ? null : ImageReaders.decode(file);
+            if (source != null) {
+                break;
+            }
+        }
+        if (source == null) {
+            File original = original(photo);
+            source = original == null ? null : ThumbnailGenerator.decodeSubsampled(original, size.pixels, size.pixels);
+        }
+        if (source == null) {
+            return null;
+        }
+        BufferedImage scaled = source.getWidth() <= size.pixels && source.getHeight() <= size.pixels
+                ? source : ImageOperations.resize(source, size.pixels, size.pixels);
+
+        String path = storage.upload(DERIVATIVE_DIR + keyOf(photo, size), photo.getAuthorId(),
+                ImageEncoders.of(scaled, ImageEncoders.formatOf(photo.getFilename())));
+        File file = path == null ? null : storage.download(path);
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        add(keyOf(photo, size), new Stored(path, file.length()));
+        Logger.getInstance().log("Derivatives", "Generated {} derivative in {} ms", size,
+                (System.nanoTime() - start) / 1_000_000);
+        return file;
+    }
+
+    /**
+     * The stored derivative for key, or null if there is none.
+     */
+    private File lookup(String key) {
+        Stored entry;
+        synchronized (this) {
+            entry = stored.get(key);
+        }
+        File file = entry == null ? null : storage.download(entry.path);
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Indexes the derivative files already in storage, least recently used
+     * first, and evicts any over the budget.
+     */
+    private void rebuild() {
+        List<File> files = new ArrayList<>();
+        for (String path : storage.list(DERIVATIVE_DIR)) {
+            File file = storage.download(path);
+            if (file != null && file.isFile()) {
+                files.add(file);
+            }
+        }
+        files.sort(Comparator.comparingLong(File::lastModified));
+        synchronized (this) {
+            for (File file : files) {
+                stored.put(file.getName(), new Stored(file.getPath(), file.length()));
+                storedBytes += file.length();
+            }
+        }
+        evictOverBudget();
+        Logger.getInstance().log("Derivatives", "Indexed {} stored derivatives, {} bytes", stored.size(), storedBytes);
+    }
+
+    private void add(String key, Stored entry) {
+        synchronized (this) {
+            Stored previous = stored.put(key, entry);
+            storedBytes += entry.bytes - (previous == null ? 0 : previous.bytes);
+        }
+        evictOverBudget();
+    }
+
+    private void evictOverBudget() {
+        List<Stored> evicted = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Map.Entry<String, Stored>> eldest = stored.entrySet().iterator();
+            // The most recently used entry stays even if it alone is over budget
+            while (storedBytes > budgetBytes && stored.size() > 1) {
+                Stored victim = eldest.next().getValue();
+                eldest.remove();
+                storedBytes -= victim.bytes;
+                evicted.add(victim);
+            }
+        }
+        for (Stored victim : evicted) {
+            storage.delete(victim.path);
+        }
+    }
+
+    private File original(Photo photo) {
+        return photo.getStoragePath() == null ? null : storage.download(photo.getStoragePath());
+    }
+
+    private static boolean fitsWithin(Photo photo, int pixels) {
+        return photo.getWidth() > 0 && photo.getWidth() <= pixels && photo.getHeight() <= pixels;
+    }
+
+    // Also the derivative's file name, so the index can be rebuilt from storage
+    private static String keyOf(Photo photo, DerivativeSize size) {
+        return photo.getPhotoId() + "_" + size.pixels + "_" + photo.getFilename();
+    }
+}
@@ -0,0 +1,428 @@
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Builds gallery thumbnails. The reader subsamples the source while it
+ * decodes, so only about twice the thumbnail's pixels are ever held in
+ * memory, however large the original is; a final resize smooths the result.
+ */
+class ThumbnailGenerator {
+    static final int WIDTH = 250;
+    static final int HEIGHT = 200;
+
+    /**
+     * The thumbnail for file, or null if it is not a readable image.
+     */
+    public static BufferedImage generate(File file) {
+        try {
+            BufferedImage decoded = decodeSubsampled(file, WIDTH, HEIGHT);
+            return decoded == null ? null : scale(decoded);
+        } catch (IOException e) {
+            Logger.getInstance().log("Thumbnails", "Thumbnail failed for {}: {}", file.getName(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The thumbnail for an image already in memory (never enlarged).
+     */
+    public static BufferedImage scale(BufferedImage image) {
+        if (image.getWidth() <= WIDTH && image.getHeight() <= HEIGHT) {
+            return ImageOperations.toIntImage(image);
+        }
+        return ImageOperations.resize(image, WIDTH, HEIGHT);
+    }
+
+    /**
+     * Decodes every n-th pixel of every n-th row, with n chosen so the result
+     * is still at least twice maxWidth x maxHeight (or the full image if it
+     * is smaller than that).
+     */
+    static BufferedImage decodeSubsampled(File file, int maxWidth, int maxHeight) throws IOException {
+        return ImageReaders.read(file, (reader, format) -> {
+            if ((long) reader.getWidth(0) * reader.getHeight(0) > ImageReaders.MAX_DECLARED_PIXELS) {
+                return null;
+            }
+            ImageReadParam param = reader.getDefaultReadParam();
+            int step = subsampling(reader.getWidth(0), reader.getHeight(0), maxWidth, maxHeight);
+            param.setSourceSubsampling(step, step, 0, 0);
+            return reader.read(0, param);
+        });
+    }
+
+    static int subsampling(int width, int height, int maxWidth, int maxHeight) {
+        return Math.max(1, Math.max(width / (2 * maxWidth), height / (2 * maxHeight)));
+    }
+}
+
+/**
+ * ImageReaders kept per thread and per format, so reading an image does not
+ * go through the ImageIO registry, which asks every installed reader to
+ * probe the stream. The format is recognised from the file signature; other
+ * files fall back to the registry. A reader leaves its thread's cache while
+ * in use, so a nested read on the same thread gets its own.
+ */
+final class ImageReaders {
+    // Largest image decoded whole, larger ones are filtered in bands: -Dphotomanager.image.maxPixels (default 50 MP)
+    static final long MAX_PIXELS = Long.getLong("photomanager.image.maxPixels", 50_000_000L);
+    // Declared sizes above this are refused outright as likely decompression bombs
+    static final long MAX_DECLARED_PIXELS = Long.getLong("photomanager.image.maxDeclaredPixels", 1_000_000_000L);
+    private static final ThreadLocal<Map<String, ImageReader>> CACHE = ThreadLocal.withInitial(HashMap::new);
+
+    private ImageReaders() {
+    }
+
+    /**
+     * Work done with a reader whose input is already set to the image.
+     */
+    interface ReadTask<T> {
+        T read(ImageReader reader, String format) throws IOException;
+    }
+
+    /**
+     * Runs task on a reader for file and returns its result, or null if
+     * file is not an image any installed reader understands.
+     */
+    static <T> T read(File file, ReadTask<T> task) throws IOException {
+        return read(file, true, task);
+    }
+
+    /**
+     * Same, with seekForwardOnly false for a task that reads the image more
+     * than once.
+     */
+    static <T> T read(File file, boolean seekForwardOnly, ReadTask<T> task) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) {
+                return null;
+            }
+            String format = detectFormat(in);
+            ImageReader reader = format != null ? acquire(format) : null;
+            if (reader == null) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                if (!readers.hasNext()) {
+                    return null;
+                }
+                reader = readers.next();
+                format = null;
+            }
+            try {
+                reader.setInput(in, seekForwardOnly, true);
+                return task.read(reader, format != null ? format : reader.getFormatName().toUpperCase(Locale.ROOT));
+            } finally {
+                release(format, reader);
+            }
+        }
+    }
+
+    /**
+     * Decodes the first image of file, or returns null if it is not one or
+     * has more than MAX_PIXELS; an image is never decoded at reduced size
+     * here. Callers that want a smaller copy of a large image subsample it
+     * (see ThumbnailGenerator.decodeSubsampled); filters reach larger images
+     * through BandedProcessing.
+     */
+    static BufferedImage decode(File file) throws IOException {
+        return read(file, (reader, format) -> {
+            long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+            if (pixels > MAX_PIXELS) {
+                Logger.getInstance().log("ImageReaders", "Refused to decode {}: {} pixels", file.getName(), pixels);
+                return null;
+            }
+            return reader.read(0, reader.getDefaultReadParam());
+        });
+    }
+
+    private static String detectFormat(ImageInputStream in) throws IOException {
+        byte[] magic = new byte[4];
+        in.mark();
+        int length;
+        try {
+            length = in.read(magic);
+        } finally {
+            in.reset();
+        }
+        if (length >= 3 && (magic[0] & 0xFF) == 0xFF && (magic[1] & 0xFF) == 0xD8 && (magic[2] & 0xFF) == 0xFF) {
+            return "JPEG";
+        }
+        if (length >= 4 && (magic[0] & 0xFF) == 0x89 && magic[1] == 'P' && magic[2] == 'N' && magic[3] == 'G') {
+            return "PNG";
+        }
+        if (length >= 4 && magic[0] == 'G' && magic[1] == 'I' && magic[2] == 'F' && magic[3] == '8') {
+            return "GIF";
+        }
+        if (length >= 2 && magic[0] == 'B' && magic[1] == 'M') {
+            return "BMP";
+        }
+        return null;
+    }
+
+    private static ImageReader acquire(String format) {
+        ImageReader reader = CACHE.get().remove(format);
+        if (reader == null) {
+            Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName(format);
+            reader = readers.hasNext() ? readers.next() : null;
+        }
+        return reader;
+    }
+
+    private static void release(String format, ImageReader reader) {
+        reader.reset();
+        if (format == null || CACHE.get().putIfAbsent(format, reader) != null) {
+            reader.dispose();
+        }
+    }
+}
+
+/**
+ * Format and dimensions of an image, read from its header without decoding
+ * any pixels.
+ */
+final class ImageHeader {
+    final String format;
+    final int width;
+    final int height;
+
+    private ImageHeader(String format, int width, int height) {
+        this.format = format;
+        this.width = width;
+        this.height = height;
+    }
+
+    long pixels() {
+        return (long) width * height;
+    }
+
+    /**
+     * The header of file, or null if it is not a readable image.
+     */
+    static ImageHeader read(File file) {
+        try {
+            return ImageReaders.read(file, (reader, format) ->
+                    new ImageHeader(format, reader.getWidth(0), reader.getHeight(0)));
+        } catch (IOException e) {
+            Logger.getInstance().log("ImageHeader", "Unreadable header in {}: {}", file.getName(), e.getMessage());
+            return null;
+        }
+    }
+}
+
+/**
+ * Runs a filter chain over an image with more than ImageReaders.MAX_PIXELS
+ * without decoding it whole. The stages before the first resize run on
+ * bands of rows, each decoded with enough rows above and below for the
+ * blurs among them. The resize collects its output band by band, from a
+ * subsampled decode when only point operations come before it, and the
+ * rest of the chain runs on its result, which is within the budget. A chain
+ * without a resize keeps the full size, so it is applied to each band as
+ * the encoder asks for its rows and the image never exists whole; only the
+ * JPEG, PNG and BMP writers consume rows like that. Chains with a custom
+ * decorator, or whose resize still leaves more than MAX_PIXELS, need the
+ * whole image and are not handled. JPEG and PNG readers decode from the top
+ * again for every band, so bands are as large as the budget allows.
+ */
+final class BandedProcessing {
+    // Decoded pixels per band; the band's filtered copies take a few times as much again
+    private static final long BAND_PIXELS = ImageReaders.MAX_PIXELS / 4;
+    private static final List<String> STREAMED_FORMATS = Arrays.asList("JPEG", "JPG", "PNG", "BMP");
+
+    private final List<ImageProcessor> before;
+    private final ResizeDecorator resize;
+    private final List<ImageProcessor> after;
+    private final int margin;
+    private final int step;
+    private final int width;
+    private final int height;
+    private final int sourceWidth;
+    private final int bandRows;
+
+    private BandedProcessing(List<ImageProcessor> before, ResizeDecorator resize, List<ImageProcessor> after,
+                             int margin, int step, ImageHeader header) {
+        this.before = before;
+        this.resize = resize;
+        this.after = after;
+        this.margin = margin;
+        this.step = step;
+        this.sourceWidth = header.width;
+        this.width = (header.width + step - 1) / step;
+        this.height = (header.height + step - 1) / step;
+        this.bandRows = (int) Math.min(height, BAND_PIXELS / width - 2L * margin);
+    }
+
+    /**
+     * How processor can run over the image header describes band by band,
+     * or null if it needs the whole image.
+     */
+    static BandedProcessing of(ImageProcessor processor, ImageHeader header) {
+        List<ImageProcessor> stages = ImageProcessingPipeline.stagesOf(processor);
+        if (stages == null) {
+            return null;
+        }
+        int split = 0;
+        long margin = 0;
+        while (split < stages.size() && !(stages.get(split) instanceof ResizeDecorator)) {
+            ImageProcessor stage = stages.get(split++);
+            if (stage instanceof NeighborhoodOperation) {
+                int reach = ((NeighborhoodOperation) stage).reach();
+                if (reach < 0) {
+                    return null;
+                }
+                margin += reach;
+            }
+        }
+        if (2 * margin >= BAND_PIXELS / header.width) {
+            return null;
+        }
+        List<ImageProcessor> before = stages.subList(0, split);
+        if (split == stages.size()) {
+            String format = ImageEncoders.canWrite(header.format) ? header.format : "PNG";
+            if (header.pixels() > Integer.MAX_VALUE || !STREAMED_FORMATS.contains(format.toUpperCase(Locale.ROOT))) {
+                return null;
+            }
+            return new BandedProcessing(before, null, null, (int) margin, 1, header);
+        }
+        ResizeDecorator resize = (ResizeDecorator) stages.get(split);
+        double scale = Math.min(1.0, Math.min((double) resize.maxWidth() / header.width,
+                (double) resize.maxHeight() / header.height));
+        if ((double) Math.round(header.width * scale) * Math.round(header.height * scale) > ImageReaders.MAX_PIXELS) {
+            return null;
+        }
+        // Blurs are sized in source pixels, so only a chain without them may be decoded subsampled
+        int step = margin == 0 ? ThumbnailGenerator.subsampling(header.width, header.height,
+                resize.maxWidth(), resize.maxHeight()) : 1;
+        return new BandedProcessing(before, resize, stages.subList(split + 1, stages.size()), (int) margin, step,
+                header);
+    }
+
+    /**
+     * True if the chain keeps the image at full size, so it can only be
+     * written through encoder(), never held as a result.
+     */
+    boolean isStreamed() {
+        return resize == null;
+    }
+
+    /**
+     * The processed image, or null if file is not a readable image.
+     */
+    BufferedImage process(File file) throws IOException {
+        return ImageReaders.read(file, false, (reader, format) -> {
+            long start = System.nanoTime();
+            BufferedImage resized = ImageOperations.resize((fromRow, toRow) -> rows(reader, fromRow, toRow),
+                    width, height, resize.maxWidth(), resize.maxHeight(), bandRows);
+            BufferedImage result = ImageProcessingPipeline.runStages(after, resized);
+            String throughput = ImageOperations.megapixelsPerSecond(width * step, height * step,
+                    System.nanoTime() - start);
+            Logger.getInstance().log("ImageProcessor", "Banded chain ran at {} MP/s in bands of {} rows",
+                    throughput, bandRows);
+            return result;
+        });
+    }
+
+    /**
+     * Encodes the processed image of file in format band by band.
+     */
+    ImageEncoder encoder(File file, String format) {
+        return out -> {
+            Boolean written;
+            try {
+                written = ImageReaders.read(file, false, (reader, readFormat) -> {
+                    BandBuffer buffer = new BandBuffer(reader);
+                    boolean alpha = buffer.hasAlpha() && !ImageEncoders.isJpeg(format);
+                    int[] masks = alpha ? new int[] {0xFF0000, 0xFF00, 0xFF, 0xFF000000}
+                            : new int[] {0xFF0000, 0xFF00, 0xFF};
+                    ColorModel model = alpha ? ColorModel.getRGBdefault()
+                            : new DirectColorModel(24, masks[0], masks[1], masks[2]);
+                    WritableRaster raster = new WritableRaster(new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT,
+                            width, height, masks), buffer, new Point()) {
+                    };
+                    ImageEncoders.of(new BufferedImage(model, raster, false, null), format).encode(out);
+                    return true;
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (written == null) {
+                throw new IOException(file.getName() + " is not a readable image");
+            }
+        };
+    }
+
+    // Rows [fromRow, toRow) of the decoded image with the stages before the resize applied
+    private BufferedImage rows(ImageReader reader, int fromRow, int toRow) throws IOException {
+        int from = Math.max(0, fromRow - margin);
+        int to = Math.min(height, toRow + margin);
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(new Rectangle(0, from * step, sourceWidth, (to - from - 1) * step + 1));
+        param.setSourceSubsampling(step, step, 0, 0);
+        BufferedImage band = ImageProcessingPipeline.runStages(before,
+                ImageOperations.toIntImage(reader.read(0, param)));
+        return from == fromRow && to == toRow ? band : ImageOperations.rows(band, fromRow - from, toRow - from);
+    }
+
+    /**
+     * The pixels of the streamed image, processed one band at a time as the
+     * writer reads them. Writers only read, and in row order (BMP bottom up).
+     */
+    private final class BandBuffer extends DataBuffer {
+        private final ImageReader reader;
+        private int[] band;
+        private int bandFrom;
+        private int bandTo;
+        private boolean alpha;
+
+        BandBuffer(ImageReader reader) throws IOException {
+            super(DataBuffer.TYPE_INT, width * height);
+            this.reader = reader;
+            load(0);
+        }
+
+        boolean hasAlpha() {
+            return alpha;
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            if (i < bandFrom || i >= bandTo) {
+                try {
+                    load(i / width / bandRows * bandRows);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return band[i - bandFrom];
+        }
+
+        @Override
+        public void setElem(int bank, int i, int value) {
+            throw new UnsupportedOperationException("Banded images are read-only");
+        }
+
+        private void load(int fromRow) throws IOException {
+            BufferedImage rows = rows(reader, fromRow, Math.min(height, fromRow + bandRows));
+            band = ImageOperations.pixels(rows);
+            alpha = rows.getColorModel().hasAlpha();
+            bandFrom = fromRow * width;
+            bandTo = bandFrom + band.length;
+        }
+    }
+}
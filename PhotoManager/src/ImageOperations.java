@@ -0,0 +1,557 @@
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Raster-level kernels shared by the image decorators. Everything works on
+ * the int[] (packed ARGB/RGB) or byte[] (BGR/ABGR) arrays behind a
+ * BufferedImage instead of per-pixel getRGB/setRGB, and splits the rows
+ * into bands that run in parallel on a ForkJoinPool.
+ */
+final class ImageOperations {
+    // Rows per band below which work is not split further
+    private static final int MIN_BAND_ROWS = 16;
+    private static final ForkJoinPool POOL = ForkJoinPool.commonPool();
+
+    private ImageOperations() {
+    }
+
+    /**
+     * Work on rows [fromRow, toRow) of an image.
+     */
+    interface RowBand {
+        void apply(int fromRow, int toRow);
+    }
+
+    /**
+     * Rows of an image too large to hold whole, read on request.
+     */
+    interface RowSource {
+        /**
+         * Rows [fromRow, toRow) as a packed-int image of their own.
+         */
+        BufferedImage rows(int fromRow, int toRow) throws IOException;
+    }
+
+    /**
+     * Runs band over [0, rows) split into parallel row bands.
+     */
+    static void forEachBand(int rows, RowBand band) {
+        forEachBand(rows, MIN_BAND_ROWS, band);
+    }
+
+    /**
+     * Same with a custom smallest band, e.g. 1 when each "row" is a whole tile.
+     */
+    static void forEachBand(int rows, int minRows, RowBand band) {
+        if (rows <= minRows * 2 || POOL.getParallelism() < 2) {
+            band.apply(0, rows);
+            return;
+        }
+        int grain = Math.max(minRows, rows / (POOL.getParallelism() * 4));
+        POOL.invoke(new BandTask(band, 0, rows, grain));
+    }
+
+    private static class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final RowBand band;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        BandTask(RowBand band, int from, int to, int grain) {
+            this.band = band;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                band.apply(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new BandTask(band, from, mid, grain), new BandTask(band, mid, to, grain));
+        }
+    }
+
+    static boolean isIntRgb(BufferedImage image) {
+        int type = image.getType();
+        return type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB;
+    }
+
+    /**
+     * The image itself if it is TYPE_INT_RGB or TYPE_INT_ARGB, otherwise a
+     * packed-int copy. BGR and ABGR byte rasters, which is what JPEG and PNG
+     * decoding usually produce, are converted directly from their arrays.
+     */
+    static BufferedImage toIntImage(BufferedImage image) {
+        return toIntImage(image, null);
+    }
+
+    /**
+     * Like toIntImage(image), additionally running after over each band of
+     * converted pixels while it is still in cache (in place for int images).
+     */
+    static BufferedImage toIntImage(BufferedImage image, PointOperation after) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (isIntRgb(image)) {
+            if (after != null) {
+                int[] data = pixels(image);
+                forEachBand(height, (fromRow, toRow) -> after.applyTo(data, fromRow * width, toRow * width));
+            }
+            return image;
+        }
+        boolean alpha = image.getColorModel().hasAlpha();
+        BufferedImage result = new BufferedImage(width, height,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        int[] dst = pixels(result);
+        int type = image.getType();
+        if (type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR) {
+            byte[] src = bytes(image);
+            int stride = type == BufferedImage.TYPE_3BYTE_BGR ? 3 : 4;
+            forEachBand(height, (fromRow, toRow) -> {
+                for (int y = fromRow; y < toRow; y++) {
+                    int s = y * width * stride;
+                    int d = y * width;
+                    for (int x = 0; x < width; x++, s += stride, d++) {
+                        if (stride == 3) {
+                            dst[d] = 0xFF000000 | (src[s + 2] & 0xFF) << 16 | (src[s + 1] & 0xFF) << 8 | (src[s] & 0xFF);
+                        } else {
+                            dst[d] = (src[s] & 0xFF) << 24 | (src[s + 3] & 0xFF) << 16
+                                    | (src[s + 2] & 0xFF) << 8 | (src[s + 1] & 0xFF);
+                        }
+                    }
+                }
+                if (after != null) {
+                    after.applyTo(dst, fromRow * width, toRow * width);
+                }
+            });
+        } else {
+            Graphics2D g = result.createGraphics();
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+            if (after != null) {
+                forEachBand(height, (fromRow, toRow) -> after.applyTo(dst, fromRow * width, toRow * width));
+            }
+        }
+        return result;
+    }
+
+    static int[] pixels(BufferedImage intImage) {
+        return ((DataBufferInt) intImage.getRaster().getDataBuffer()).getData();
+    }
+
+    static byte[] bytes(BufferedImage byteImage) {
+        return ((DataBufferByte) byteImage.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Scales image down to fit within maxWidth x maxHeight keeping its aspect
+     * ratio; an image that already fits is returned unchanged. Downscaling
+     * halves the image with a 2x2 box filter while it is at least twice the
+     * target, then finishes with one bilinear step, which avoids the aliasing
+     * of a single large bilinear reduction.
+     */
+    static BufferedImage resize(BufferedImage image, int maxWidth, int maxHeight) {
+        return resize(image, maxWidth, maxHeight, null);
+    }
+
+    /**
+     * Like resize(image, maxWidth, maxHeight), additionally running after
+     * over each band of the final step's output as soon as it is written.
+     */
+    static BufferedImage resize(BufferedImage image, int maxWidth, int maxHeight, PointOperation after) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (width <= maxWidth && height <= maxHeight) {
+            return after == null ? image : toIntImage(image, after);
+        }
+        double scale = Math.min(1.0, Math.min((double) maxWidth / width, (double) maxHeight / height));
+        int targetWidth = Math.max(1, (int) Math.round(width * scale));
+        int targetHeight = Math.max(1, (int) Math.round(height * scale));
+        if (targetWidth == width && targetHeight == height) {
+            return toIntImage(image, after);
+        }
+
+        int halvings = 0;
+        for (int w = width, h = height; w / 2 >= targetWidth && h / 2 >= targetHeight; w /= 2, h /= 2) {
+            halvings++;
+        }
+        boolean bilinearStep = (width >> halvings) != targetWidth || (height >> halvings) != targetHeight;
+        BufferedImage current = toIntImage(image);
+        for (int i = 1; i <= halvings; i++) {
+            current = halve(current, i == halvings && !bilinearStep ? after : null);
+        }
+        if (bilinearStep) {
+            current = bilinear(current, targetWidth, targetHeight, after);
+        }
+        return current;
+    }
+
+    private static BufferedImage halve(BufferedImage image, PointOperation after) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int halfWidth = width / 2;
+        int halfHeight = height / 2;
+        BufferedImage result = new BufferedImage(halfWidth, halfHeight, image.getType());
+        int[] src = pixels(image);
+        int[] dst = pixels(result);
+        forEachBand(halfHeight, (fromRow, toRow) -> {
+            for (int y = fromRow; y < toRow; y++) {
+                int top = 2 * y * width;
+                int bottom = top + width;
+                int d = y * halfWidth;
+                for (int x = 0; x < halfWidth; x++) {
+                    int s = 2 * x;
+                    int p0 = src[top + s];
+                    int p1 = src[top + s + 1];
+                    int p2 = src[bottom + s];
+                    int p3 = src[bottom + s + 1];
+                    dst[d + x] = average(p0, p1, p2, p3, 24) << 24 | average(p0, p1, p2, p3, 16) << 16
+                            | average(p0, p1, p2, p3, 8) << 8 | average(p0, p1, p2, p3, 0);
+                }
+            }
+            if (after != null) {
+                after.applyTo(dst, fromRow * halfWidth, toRow * halfWidth);
+            }
+        });
+        return result;
+    }
+
+    private static int average(int p0, int p1, int p2, int p3, int shift) {
+        return (((p0 >>> shift) & 0xFF) + ((p1 >>> shift) & 0xFF)
+                + ((p2 >>> shift) & 0xFF) + ((p3 >>> shift) & 0xFF) + 2) >> 2;
+    }
+
+    private static BufferedImage bilinear(BufferedImage image, int targetWidth, int targetHeight,
+                                          PointOperation after) {
+        BufferedImage result = new BufferedImage(targetWidth, targetHeight, image.getType());
+        int[] src = pixels(image);
+        int[] dst = pixels(result);
+        BilinearGrid grid = new BilinearGrid(image.getWidth(), image.getHeight(), targetWidth, targetHeight);
+        forEachBand(targetHeight, (fromRow, toRow) -> {
+            grid.rows(src, 0, dst, fromRow, toRow);
+            if (after != null) {
+                after.applyTo(dst, fromRow * targetWidth, toRow * targetWidth);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Like resize(image, maxWidth, maxHeight) for a width x height image
+     * that is only available through source, read in bands of about
+     * bandRows rows; only the result is held whole. The result is the same
+     * as resizing the whole image.
+     */
+    static BufferedImage resize(RowSource source, int width, int height, int maxWidth, int maxHeight,
+                                int bandRows) throws IOException {
+        double scale = Math.min(1.0, Math.min((double) maxWidth / width, (double) maxHeight / height));
+        int targetWidth = Math.max(1, (int) Math.round(width * scale));
+        int targetHeight = Math.max(1, (int) Math.round(height * scale));
+        int halvings = 0;
+        for (int w = width, h = height; w / 2 >= targetWidth && h / 2 >= targetHeight; w /= 2, h /= 2) {
+            halvings++;
+        }
+        BilinearGrid grid = (width >> halvings) != targetWidth || (height >> halvings) != targetHeight
+                ? new BilinearGrid(width >> halvings, height >> halvings, targetWidth, targetHeight) : null;
+
+        BufferedImage result = null;
+        int step = (int) Math.max(1, (long) bandRows * targetHeight / height);
+        for (int from = 0; from < targetHeight; from += step) {
+            int to = Math.min(targetHeight, from + step);
+            // Rows of the halved image this band reads; their source rows
+            // start on a multiple of the halving block, so halving the band
+            // gives exactly the rows halving the whole image would
+            int first = grid != null ? grid.y0[from] : from;
+            int last = grid != null ? grid.y1[to - 1] : to - 1;
+            BufferedImage band = toIntImage(source.rows(first << halvings, (last + 1) << halvings));
+            for (int i = 0; i < halvings; i++) {
+                band = halve(band, null);
+            }
+            if (result == null) {
+                result = new BufferedImage(targetWidth, targetHeight, band.getType());
+            }
+            int[] src = pixels(band);
+            int[] dst = pixels(result);
+            if (grid != null) {
+                int offset = from;
+                forEachBand(to - from, (fromRow, toRow) ->
+                        grid.rows(src, first, dst, offset + fromRow, offset + toRow));
+            } else {
+                System.arraycopy(src, 0, dst, from * targetWidth, (to - from) * targetWidth);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Source columns and rows, with their 8-bit weights, of a bilinear
+     * resize from width x height to targetWidth x targetHeight.
+     */
+    private static final class BilinearGrid {
+        final int width;
+        final int targetWidth;
+        final int[] x0, x1, fx;
+        final int[] y0, y1, fy;
+
+        BilinearGrid(int width, int height, int targetWidth, int targetHeight) {
+            this.width = width;
+            this.targetWidth = targetWidth;
+            x0 = new int[targetWidth];
+            x1 = new int[targetWidth];
+            fx = new int[targetWidth];
+            samplePositions(width, targetWidth, x0, x1, fx);
+            y0 = new int[targetHeight];
+            y1 = new int[targetHeight];
+            fy = new int[targetHeight];
+            samplePositions(height, targetHeight, y0, y1, fy);
+        }
+
+        // Writes output rows [fromRow, toRow); src holds the source rows from firstRow on
+        void rows(int[] src, int firstRow, int[] dst, int fromRow, int toRow) {
+            for (int y = fromRow; y < toRow; y++) {
+                int top = (y0[y] - firstRow) * width;
+                int bottom = (y1[y] - firstRow) * width;
+                int wy = fy[y];
+                int d = y * targetWidth;
+                for (int x = 0; x < targetWidth; x++) {
+                    int wx = fx[x];
+                    int p00 = src[top + x0[x]];
+                    int p01 = src[top + x1[x]];
+                    int p10 = src[bottom + x0[x]];
+                    int p11 = src[bottom + x1[x]];
+                    dst[d + x] = lerp(p00, p01, p10, p11, wx, wy, 24) << 24 | lerp(p00, p01, p10, p11, wx, wy, 16) << 16
+                            | lerp(p00, p01, p10, p11, wx, wy, 8) << 8 | lerp(p00, p01, p10, p11, wx, wy, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy of rows [fromRow, toRow) of a packed-int image.
+     */
+    static BufferedImage rows(BufferedImage intImage, int fromRow, int toRow) {
+        int width = intImage.getWidth();
+        BufferedImage result = new BufferedImage(width, toRow - fromRow, intImage.getType());
+        System.arraycopy(pixels(intImage), fromRow * width, pixels(result), 0, (toRow - fromRow) * width);
+        return result;
+    }
+
+    private static void samplePositions(int size, int targetSize, int[] lower, int[] upper, int[] weight) {
+        double ratio = (double) size / targetSize;
+        for (int i = 0; i < targetSize; i++) {
+            double position = Math.max(0, (i + 0.5) * ratio - 0.5);
+            int p = Math.min((int) position, size - 1);
+            lower[i] = p;
+            upper[i] = Math.min(p + 1, size - 1);
+            weight[i] = (int) ((position - p) * 256);
+        }
+    }
+
+    private static int lerp(int p00, int p01, int p10, int p11, int wx, int wy, int shift) {
+        int c00 = (p00 >>> shift) & 0xFF;
+        int c01 = (p01 >>> shift) & 0xFF;
+        int c10 = (p10 >>> shift) & 0xFF;
+        int c11 = (p11 >>> shift) & 0xFF;
+        int top = c00 * (256 - wx) + c01 * wx;
+        int bottom = c10 * (256 - wx) + c11 * wx;
+        return (top * (256 - wy) + bottom * wy + (1 << 15)) >> 16;
+    }
+
+    // Fixed-point (x1024) sepia matrix: rows produce red, green, blue
+    private static final int RR = 402, RG = 787, RB = 194;
+    private static final int GR = 357, GG = 702, GB = 172;
+    private static final int BR = 279, BG = 547, BB = 134;
+
+    /**
+     * Applies sepia in place when the image is packed int RGB/ARGB or BGR/ABGR
+     * bytes, otherwise on a packed-int copy; returns the image that holds the
+     * result.
+     */
+    static BufferedImage sepia(BufferedImage image) {
+        int type = image.getType();
+        if (type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR) {
+            sepiaBytes(bytes(image), image.getWidth(), image.getHeight(),
+                    type == BufferedImage.TYPE_3BYTE_BGR ? 3 : 4);
+            return image;
+        }
+        return toIntImage(image, ImageOperations::sepia);
+    }
+
+    /**
+     * Sepia over packed pixels [from, to) of data, in place.
+     */
+    static void sepia(int[] data, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int p = data[i];
+            int r = (p >> 16) & 0xFF;
+            int g = (p >> 8) & 0xFF;
+            int b = p & 0xFF;
+            int nr = Math.min(255, (r * RR + g * RG + b * RB) >> 10);
+            int ng = Math.min(255, (r * GR + g * GG + b * GB) >> 10);
+            int nb = Math.min(255, (r * BR + g * BG + b * BB) >> 10);
+            data[i] = (p & 0xFF000000) | nr << 16 | ng << 8 | nb;
+        }
+    }
+
+    private static void sepiaBytes(byte[] data, int width, int height, int stride) {
+        // Alpha, if any, comes first; then blue, green, red
+        int offset = stride - 3;
+        forEachBand(height, (fromRow, toRow) -> {
+            int end = toRow * width * stride;
+            for (int i = fromRow * width * stride + offset; i < end; i += stride) {
+                int b = data[i] & 0xFF;
+                int g = data[i + 1] & 0xFF;
+                int r = data[i + 2] & 0xFF;
+                data[i] = (byte) Math.min(255, (r * BR + g * BG + b * BB) >> 10);
+                data[i + 1] = (byte) Math.min(255, (r * GR + g * GG + b * GB) >> 10);
+                data[i + 2] = (byte) Math.min(255, (r * RR + g * RG + b * RB) >> 10);
+            }
+        });
+    }
+
+    /**
+     * Approximates a Gaussian blur with passes successive box blurs of the
+     * given radius. Each box blur is separable and keeps running sums, so
+     * the cost per pixel does not depend on the radius. A pass works on
+     * column tiles in parallel and walks each tile down the rows: every
+     * incoming row is blurred horizontally into a ring of 2r + 2 rows, and
+     * the vertical running sums are taken over that ring, so the
+     * intermediate between the two directions stays cache-sized. Edges are
+     * clamped. after, if given, runs on each output row of the last pass as
+     * soon as it is written. Returns a new image.
+     */
+    static BufferedImage boxBlur(BufferedImage image, int radius, int passes) {
+        return boxBlur(image, radius, passes, null);
+    }
+
+    static BufferedImage boxBlur(BufferedImage image, int radius, int passes, PointOperation after) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        radius = Math.min(radius, Math.max(width, height));
+        if (radius < 1 || passes < 1) {
+            return toIntImage(image, after);
+        }
+        BufferedImage source = toIntImage(image);
+        int r = radius;
+        // (sum * scale) >> 24 divides by the window size 2r + 1
+        long scale = ((1L << 24) + r) / (2 * r + 1);
+        // Wide enough that starting each row's running sum is cheap
+        int tileWidth = Math.min(width, Math.max(256, 4 * (2 * r + 1)));
+        int tiles = (width + tileWidth - 1) / tileWidth;
+
+        BufferedImage result = new BufferedImage(width, height, source.getType());
+        int[] data = pixels(result);
+        int[] other = passes > 1 ? new int[data.length] : null;
+        int[] in = pixels(source);
+        for (int pass = 0; pass < passes; pass++) {
+            // Alternate buffers so that the last pass writes into result
+            int[] out = (passes - 1 - pass) % 2 == 0 ? data : other;
+            int[] passIn = in;
+            PointOperation hook = pass == passes - 1 ? after : null;
+            forEachBand(tiles, 1, (fromTile, toTile) -> {
+                for (int t = fromTile; t < toTile; t++) {
+                    int fromColumn = t * tileWidth;
+                    blurTile(passIn, out, fromColumn, Math.min(width, fromColumn + tileWidth),
+                            width, height, r, scale, hook);
+                }
+            });
+            in = out;
+        }
+        return result;
+    }
+
+    private static void blurTile(int[] src, int[] dst, int fromColumn, int toColumn, int width, int height,
+                                 int r, long scale, PointOperation after) {
+        int columns = toColumn - fromColumn;
+        int window = 2 * r + 2;
+        int[] ring = new int[window * columns];
+        int[] sa = new int[columns];
+        int[] sr = new int[columns];
+        int[] sg = new int[columns];
+        int[] sb = new int[columns];
+        int last = height - 1;
+
+        // Ring slot (i + r) % window holds the horizontal blur of row clamp(i)
+        for (int i = -r; i <= r; i++) {
+            int slot = (i + r) % window * columns;
+            blurRowSpan(src, Math.min(Math.max(i, 0), last) * width, width, fromColumn, columns, r, scale, ring, slot);
+            for (int c = 0; c < columns; c++) {
+                int p = ring[slot + c];
+                sa[c] += p >>> 24;
+                sr[c] += (p >> 16) & 0xFF;
+                sg[c] += (p >> 8) & 0xFF;
+                sb[c] += p & 0xFF;
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            int row = y * width + fromColumn;
+            for (int c = 0; c < columns; c++) {
+                dst[row + c] = pack(sa[c], sr[c], sg[c], sb[c], scale);
+            }
+            if (after != null) {
+                after.applyTo(dst, row, row + columns);
+            }
+            int incoming = y + r + 1;
+            int inSlot = (incoming + r) % window * columns;
+            int outSlot = y % window * columns;
+            blurRowSpan(src, Math.min(incoming, last) * width, width, fromColumn, columns, r, scale, ring, inSlot);
+            for (int c = 0; c < columns; c++) {
+                int pi = ring[inSlot + c];
+                int po = ring[outSlot + c];
+                sa[c] += (pi >>> 24) - (po >>> 24);
+                sr[c] += ((pi >> 16) & 0xFF) - ((po >> 16) & 0xFF);
+                sg[c] += ((pi >> 8) & 0xFF) - ((po >> 8) & 0xFF);
+                sb[c] += (pi & 0xFF) - (po & 0xFF);
+            }
+        }
+    }
+
+    // Horizontal box blur of columns [fromColumn, fromColumn + columns) of one row
+    private static void blurRowSpan(int[] src, int offset, int width, int fromColumn, int columns,
+                                    int r, long scale, int[] dst, int dstOffset) {
+        int last = width - 1;
+        int sa = 0, sr = 0, sg = 0, sb = 0;
+        for (int i = fromColumn - r; i <= fromColumn + r; i++) {
+            int p = src[offset + Math.min(Math.max(i, 0), last)];
+            sa += p >>> 24;
+            sr += (p >> 16) & 0xFF;
+            sg += (p >> 8) & 0xFF;
+            sb += p & 0xFF;
+        }
+        for (int c = 0; c < columns; c++) {
+            int x = fromColumn + c;
+            dst[dstOffset + c] = pack(sa, sr, sg, sb, scale);
+            int in = src[offset + Math.min(x + r + 1, last)];
+            int out = src[offset + Math.max(x - r, 0)];
+            sa += (in >>> 24) - (out >>> 24);
+            sr += ((in >> 16) & 0xFF) - ((out >> 16) & 0xFF);
+            sg += ((in >> 8) & 0xFF) - ((out >> 8) & 0xFF);
+            sb += (in & 0xFF) - (out & 0xFF);
+        }
+    }
+
+    // Rounded rather than truncated, so repeated passes do not darken the image
+    private static int pack(int sa, int sr, int sg, int sb, long scale) {
+        long half = 1L << 23;
+        return (int) ((sa * scale + half) >>> 24) << 24 | (int) ((sr * scale + half) >>> 24) << 16
+                | (int) ((sg * scale + half) >>> 24) << 8 | (int) ((sb * scale + half) >>> 24);
+    }
+
+    /**
+     * Throughput of an operation over a width x height image, in megapixels per second.
+     */
+    static String megapixelsPerSecond(int width, int height, long elapsedNanos) {
+        double megapixels = (double) width * height / 1_000_000;
+        return String.format("%.1f", megapixels / Math.max(elapsedNanos, 1) * 1_000_000_000L);
+    }
+}
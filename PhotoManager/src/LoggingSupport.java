@@ -0,0 +1,1417 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * What a producer does when the asynchronous log buffer is full.
+ * BLOCK waits for space, DROP discards the event, SAMPLE keeps one event
+ * in every sampleRate (waiting for space for it) and discards the rest.
+ */
+enum OverflowPolicy {
+    BLOCK, DROP, SAMPLE
+}
+
+/**
+ * Receives log events on the consumer side of the ring buffer.
+ */
+interface LogSink {
+    void write(long timestamp, String actor, String action, String photoId);
+}
+
+/**
+ * Bounded multi-producer, single-consumer ring buffer of pre-allocated log
+ * events. Producers claim a slot with a CAS on the claim sequence, fill it
+ * with the message template and its raw arguments and publish it by storing
+ * its sequence number; they never take a lock or allocate. One daemon
+ * consumer thread drains published slots in order, renders the message and
+ * hands it to the sink, which does the remaining formatting and I/O.
+ */
+class LogRingBuffer {
+    private final int mask;
+    private final long[] timestamps;
+    private final String[] actors;
+    private final String[] templates;
+    private final byte[] kinds;
+    private final Object[] args1;
+    private final Object[] args2;
+    private final long[] nums1;
+    private final long[] nums2;
+    private final String[] photoIds;
+    // Sequence last published into each slot; -1 while never written
+    private final AtomicLongArray published;
+    private final AtomicLong claimSequence = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong overflowCounter = new AtomicLong();
+    private final OverflowPolicy policy;
+    private final int sampleRate;
+    private final LogSink sink;
+    private volatile long consumerSequence;
+    private volatile boolean running = true;
+    private volatile Thread consumer;
+
+    public LogRingBuffer(int capacity, OverflowPolicy policy, int sampleRate, LogSink sink) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.timestamps = new long[size];
+        this.actors = new String[size];
+        this.templates = new String[size];
+        this.kinds = new byte[size];
+        this.args1 = new Object[size];
+        this.args2 = new Object[size];
+        this.nums1 = new long[size];
+        this.nums2 = new long[size];
+        this.photoIds = new String[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        this.policy = policy;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.sink = sink;
+    }
+
+    public void start() {
+        Thread t = new Thread(this::consume, "log-consumer");
+        t.setDaemon(true);
+        consumer = t;
+        t.start();
+    }
+
+    /**
+     * Publishes one event; kind says whether the template is plain text or
+     * takes the object or the long arguments (see LogFormatter). Returns
+     * false if the overflow policy dropped it.
+     */
+    public boolean publish(long timestamp, String actor, String photoId, String template, byte kind,
+                           Object arg1, Object arg2, long num1, long num2) {
+        long seq = claim();
+        if (seq < 0) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        int slot = (int) seq & mask;
+        timestamps[slot] = timestamp;
+        actors[slot] = actor;
+        photoIds[slot] = photoId;
+        templates[slot] = template;
+        kinds[slot] = kind;
+        args1[slot] = arg1;
+        args2[slot] = arg2;
+        nums1[slot] = num1;
+        nums2[slot] = num2;
+        published.lazySet(slot, seq);
+        return true;
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Waits until every event published before the call has been written.
+     */
+    public void flush() {
+        long target = claimSequence.get();
+        while (consumerSequence < target && consumer != null && consumer.isAlive()) {
+            LockSupport.unpark(consumer);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    public void stop() {
+        flush();
+        running = false;
+        Thread t = consumer;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    // Next free sequence, or -1 if the event is to be dropped
+    private long claim() {
+        boolean mustWait = policy == OverflowPolicy.BLOCK;
+        while (true) {
+            long seq = claimSequence.get();
+            if (seq - consumerSequence >= timestamps.length) {
+                if (!mustWait) {
+                    if (policy == OverflowPolicy.DROP
+                            || overflowCounter.getAndIncrement() % sampleRate != 0) {
+                        return -1;
+                    }
+                    mustWait = true;
+                }
+                LockSupport.parkNanos(10_000);
+                continue;
+            }
+            if (claimSequence.compareAndSet(seq, seq + 1)) {
+                return seq;
+            }
+        }
+    }
+
+    private void consume() {
+        StringBuilder message = new StringBuilder(128);
+        long next = 0;
+        int idle = 0;
+        while (running || next < claimSequence.get()) {
+            int slot = (int) next & mask;
+            if (published.get(slot) == next) {
+                String actor = actors[slot];
+                String photoId = photoIds[slot];
+                long timestamp = timestamps[slot];
+                message.setLength(0);
+                LogFormatter.render(message, templates[slot], kinds[slot],
+                        args1[slot], args2[slot], nums1[slot], nums2[slot]);
+                actors[slot] = null;
+                photoIds[slot] = null;
+                templates[slot] = null;
+                args1[slot] = null;
+                args2[slot] = null;
+                try {
+                    sink.write(timestamp, actor, message.toString(), photoId);
+                } catch (RuntimeException e) {
+                    // A failing sink must not stop the consumer
+                }
+                consumerSequence = ++next;
+                idle = 0;
+            } else if (++idle < 100) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(1_000_000);
+            }
+        }
+    }
+}
+
+
+/**
+ * Renders log messages and timestamps. Templates use {} placeholders that
+ * are filled in order from the arguments; they are only rendered when a
+ * sink needs the text. Timestamps are rendered like ISO_LOCAL_DATE_TIME
+ * from a per-thread cache of the current second, so consecutive entries in
+ * the same second only append the milliseconds.
+ */
+class LogFormatter {
+    static final byte TEXT = 0;
+    static final byte OBJECTS = 1;
+    static final byte LONGS = 2;
+
+    private static final ThreadLocal<ClockCache> CLOCK = ThreadLocal.withInitial(ClockCache::new);
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(128));
+
+    static void render(StringBuilder sb, String template, byte kind, Object arg1, Object arg2, long num1, long num2) {
+        if (kind == TEXT || template == null) {
+            sb.append(template);
+            return;
+        }
+        int start = 0;
+        int argument = 0;
+        while (true) {
+            int placeholder = template.indexOf("{}", start);
+            if (placeholder < 0 || argument == 2) {
+                break;
+            }
+            sb.append(template, start, placeholder);
+            if (kind == LONGS) {
+                sb.append(argument == 0 ? num1 : num2);
+            } else {
+                sb.append(argument == 0 ? arg1 : arg2);
+            }
+            argument++;
+            start = placeholder + 2;
+        }
+        sb.append(template, start, template.length());
+    }
+
+    static String render(String template, byte kind, Object arg1, Object arg2, long num1, long num2) {
+        if (kind == TEXT) {
+            return template;
+        }
+        StringBuilder sb = BUFFER.get();
+        sb.setLength(0);
+        render(sb, template, kind, arg1, arg2, num1, num2);
+        return sb.toString();
+    }
+
+    static void appendTimestamp(StringBuilder sb, long millis) {
+        CLOCK.get().append(sb, millis);
+    }
+
+    /**
+     * "yyyy-MM-ddTHH:mm:ss" of the last second this thread rendered.
+     */
+    private static class ClockCache {
+        private long second = Long.MIN_VALUE;
+        private String prefix;
+
+        void append(StringBuilder sb, long millis) {
+            long epochSecond = Math.floorDiv(millis, 1000L);
+            if (epochSecond != second) {
+                Instant instant = Instant.ofEpochSecond(epochSecond);
+                prefix = LocalDateTime.ofInstant(instant, ZoneId.systemDefault())
+                        .format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+                second = epochSecond;
+            }
+            sb.append(prefix);
+            int fraction = (int) Math.floorMod(millis, 1000L);
+            if (fraction != 0) {
+                // ISO_LOCAL_DATE_TIME drops trailing zeros of the fraction
+                sb.append('.').append((char) ('0' + fraction / 100));
+                if (fraction % 100 != 0) {
+                    sb.append((char) ('0' + fraction / 10 % 10));
+                    if (fraction % 10 != 0) {
+                        sb.append((char) ('0' + fraction % 10));
+                    }
+                }
+            }
+        }
+    }
+}
+
+/**
+ * One structured log record. seq is assigned by LogSegmentStore and keeps
+ * increasing across restarts; photoId is null when the entry does not
+ * concern a photo. Stored one per line as tab-separated, escaped fields.
+ */
+class LogEntry {
+    private final long seq;
+    private final long timestamp;
+    private final String actor;
+    private final String action;
+    private final String photoId;
+
+    public LogEntry(long seq, long timestamp, String actor, String action, String photoId) {
+        this.seq = seq;
+        this.timestamp = timestamp;
+        this.actor = actor;
+        this.action = action;
+        this.photoId = photoId;
+    }
+
+    public long getSeq() { return seq; }
+    public long getTimestamp() { return timestamp; }
+    public String getActor() { return actor; }
+    public String getAction() { return action; }
+    public String getPhotoId() { return photoId; }
+
+    public String format() {
+        StringBuilder sb = new StringBuilder(48 + (action == null ? 4 : action.length()));
+        sb.append('[');
+        LogFormatter.appendTimestamp(sb, timestamp);
+        sb.append("] ").append(actor).append(": ").append(action);
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return format();
+    }
+
+    String encode() {
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(seq).append('\t').append(timestamp).append('\t');
+        escape(sb, actor);
+        sb.append('\t');
+        escape(sb, photoId);
+        sb.append('\t');
+        escape(sb, action);
+        return sb.toString();
+    }
+
+    /**
+     * Parses a line written by encode(); returns null for anything else.
+     */
+    static LogEntry decode(String line) {
+        String[] fields = new String[5];
+        int start = 0;
+        for (int i = 0; i < 4; i++) {
+            int tab = line.indexOf('\t', start);
+            if (tab < 0) return null;
+            fields[i] = line.substring(start, tab);
+            start = tab + 1;
+        }
+        fields[4] = line.substring(start);
+        try {
+            return new LogEntry(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                    unescape(fields[2]), unescape(fields[4]), unescape(fields[3]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Empty field means null, so every stored field is a single tab-free token
+    private static void escape(StringBuilder sb, String value) {
+        if (value == null) return;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': sb.append("\\\\"); break;
+                case '\t': sb.append("\\t"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                default: sb.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String field) {
+        if (field.isEmpty()) return null;
+        if (field.indexOf('\\') < 0) return field;
+        StringBuilder sb = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 1 < field.length()) {
+                char next = field.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
+
+/**
+ * One page of a log tail. Pass getCursor() as afterSeq to fetch the next
+ * page; entries that were removed by retention are skipped over.
+ */
+class LogPage {
+    private final List<LogEntry> entries;
+    private final long cursor;
+    private final long lastSeq;
+
+    LogPage(List<LogEntry> entries, long afterSeq, long lastSeq) {
+        this.entries = entries;
+        this.cursor = entries.isEmpty() ? afterSeq : entries.get(entries.size() - 1).getSeq();
+        this.lastSeq = lastSeq;
+    }
+
+    public List<LogEntry> getEntries() { return entries; }
+    public long getCursor() { return cursor; }
+    public boolean hasMore() { return cursor < lastSeq; }
+}
+
+/**
+ * Rolling on-disk store for structured log entries. Entries are appended to
+ * segment files (log-NNNNNNNNNNNN.log) that roll over by size or age.
+ * Segments beyond maxSegments or older than retentionMillis are converted
+ * in the background into a compact LogArchive (log-N.arc), kept for
+ * archiveRetentionMillis; with archiving disabled (0) they are deleted.
+ * Each segment has a LogSegmentIndex, so actor and time range queries read
+ * only the matching entries. Only a small tail of recent entries is kept in
+ * memory; everything else is read back from the segments as a stream.
+ */
+class LogSegmentStore {
+    static final String LOG_PATH = "./logs/";
+
+    private final File dir;
+    private final long maxSegmentBytes;
+    private final long maxSegmentMillis;
+    private final int maxSegments;
+    private final long retentionMillis;
+    private final long archiveRetentionMillis;
+    private final int tailSize;
+    private final ArrayDeque<LogEntry> tail;
+    // Indexes of rolled segments, loaded on first use
+    private final Map<Long, LogSegmentIndex> sealedIndexes = new ConcurrentHashMap<>();
+    private final Set<Long> archiving = ConcurrentHashMap.newKeySet();
+    private final ExecutorService archiver = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "log-archiver");
+        t.setDaemon(true);
+        return t;
+    });
+    private long generation;
+    private long segmentOpenedAt;
+    private long segmentBytes;
+    private OutputStream segment;
+    private LogSegmentIndex activeIndex;
+    private long nextSeq;
+    private boolean failed;
+
+    public LogSegmentStore(File dir, long maxSegmentBytes, long maxSegmentMillis,
+                           int maxSegments, long retentionMillis, long archiveRetentionMillis, int tailSize) {
+        this.dir = dir;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegmentMillis = maxSegmentMillis;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.retentionMillis = retentionMillis;
+        this.archiveRetentionMillis = archiveRetentionMillis;
+        this.tailSize = Math.max(1, tailSize);
+        this.tail = new ArrayDeque<>(this.tailSize);
+        dir.mkdirs();
+        List<Long> generations = generations(".log");
+        if (!generations.isEmpty()) {
+            generation = generations.get(generations.size() - 1);
+            LogSegmentIndex newest = sealedIndex(generation);
+            nextSeq = newest == null ? 0 : newest.lastSeq + 1;
+        }
+    }
+
+    public synchronized LogEntry append(long timestamp, String actor, String action, String photoId) {
+        LogEntry entry = new LogEntry(nextSeq++, timestamp, actor, action, photoId);
+        if (tail.size() == tailSize) {
+            tail.removeFirst();
+        }
+        tail.addLast(entry);
+        if (failed) {
+            return entry;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            if (segment == null || segmentBytes >= maxSegmentBytes || now - segmentOpenedAt >= maxSegmentMillis) {
+                roll(now);
+            }
+            byte[] line = (entry.encode() + "\n").getBytes(StandardCharsets.UTF_8);
+            segment.write(line);
+            activeIndex.add(entry, segmentBytes);
+            segmentBytes += line.length;
+            activeIndex.length = segmentBytes;
+        } catch (IOException e) {
+            // The logger cannot log its own failure; keep the in-memory tail only
+            failed = true;
+            System.err.println("Log store disabled: " + e.getMessage());
+        }
+        return entry;
+    }
+
+    /**
+     * Up to limit entries with seq greater than afterSeq, oldest first.
+     * Served from the in-memory tail when the cursor is recent enough,
+     * otherwise from the first segment that can contain the next seq.
+     */
+    public LogPage tail(long afterSeq, int limit) {
+        List<LogEntry> entries = new ArrayList<>(Math.min(limit, tailSize));
+        long lastSeq;
+        synchronized (this) {
+            lastSeq = nextSeq - 1;
+            if (afterSeq >= lastSeq || limit <= 0) {
+                return new LogPage(entries, Math.min(afterSeq, lastSeq), lastSeq);
+            }
+            if (failed || (!tail.isEmpty() && tail.getFirst().getSeq() <= afterSeq + 1)) {
+                for (LogEntry entry : tail) {
+                    if (entry.getSeq() > afterSeq) {
+                        entries.add(entry);
+                        if (entries.size() == limit) break;
+                    }
+                }
+                return new LogPage(entries, afterSeq, lastSeq);
+            }
+        }
+        try (Stream<LogEntry> older = plan(read -> read.all().filter(e -> e.getSeq() > afterSeq),
+                index -> index.lastSeq > afterSeq)) {
+            older.limit(limit).forEach(entries::add);
+        }
+        return new LogPage(entries, afterSeq, lastSeq);
+    }
+
+    public synchronized long lastSeq() {
+        return nextSeq - 1;
+    }
+
+    /**
+     * Entries whose actor equals the given one, read through the actor index.
+     */
+    public Stream<LogEntry> streamByActor(String actor) {
+        return plan(read -> read.byActor(actor), null);
+    }
+
+    /**
+     * Entries with fromMillis <= timestamp <= toMillis; segments and time
+     * buckets outside the range are never read.
+     */
+    public Stream<LogEntry> streamBetween(long fromMillis, long toMillis) {
+        return plan(read -> read.between(fromMillis, toMillis),
+                index -> index.overlaps(fromMillis, toMillis));
+    }
+
+    /**
+     * Audit replay over archives and live segments: entries in the time
+     * range, optionally only those of one actor. Archive blocks whose time
+     * bounds or actor set cannot match are skipped without decompressing.
+     */
+    public Stream<LogEntry> streamAudit(long fromMillis, long toMillis, String actor) {
+        List<File> archives = new ArrayList<>();
+        Stream<LogEntry> live;
+        synchronized (this) {
+            for (long gen : generations(".arc")) {
+                archives.add(archivePath(gen));
+            }
+            if (actor == null) {
+                live = streamBetween(fromMillis, toMillis);
+            } else {
+                live = plan(read -> read.byActor(actor)
+                                .filter(e -> e.getTimestamp() >= fromMillis && e.getTimestamp() <= toMillis),
+                        index -> index.overlaps(fromMillis, toMillis) && index.countOf(actor) > 0);
+            }
+        }
+        return Stream.concat(archives.stream().flatMap(file -> LogArchive.read(file, fromMillis, toMillis, actor)), live);
+    }
+
+    public long countByActor(String actor) {
+        List<Long> generations;
+        long count;
+        synchronized (this) {
+            if (failed) {
+                return tail.stream().filter(e -> Objects.equals(e.getActor(), actor)).count();
+            }
+            count = segment == null ? 0 : activeIndex.countOf(actor);
+            generations = sealedGenerations();
+        }
+        for (long gen : generations) {
+            LogSegmentIndex index = sealedIndex(gen);
+            if (index != null) {
+                count += index.countOf(actor);
+            }
+        }
+        return count;
+    }
+
+    public synchronized void close() {
+        try {
+            if (segment != null) {
+                segment.close();
+                activeIndex.write(indexPath(generation));
+                sealedIndexes.put(generation, activeIndex);
+                segment = null;
+            }
+        } catch (IOException e) {
+            System.err.println("Closing log segment failed: " + e.getMessage());
+        }
+    }
+
+    // Takes a consistent view of the segments under the lock; the data itself
+    // is read lazily afterwards, from the segment's archive if it has been
+    // archived since. The active segment is read only up to its length at
+    // this point, so a concurrent append is never seen half-written.
+    private Stream<LogEntry> plan(Function<SegmentRead, Stream<LogEntry>> query,
+                                  Predicate<LogSegmentIndex> keep) {
+        List<SegmentRead> reads = new ArrayList<>();
+        synchronized (this) {
+            if (failed) {
+                List<SegmentRead> memory = Collections.singletonList(new SegmentRead(new ArrayList<>(tail)));
+                return memory.stream().flatMap(query);
+            }
+            for (long gen : sealedGenerations()) {
+                reads.add(new SegmentRead(segmentPath(gen), archivePath(gen), gen, null));
+            }
+            if (segment != null) {
+                try {
+                    segment.flush();
+                } catch (IOException e) {
+                    // Read whatever reached the file
+                }
+                reads.add(new SegmentRead(segmentPath(generation), archivePath(generation), generation,
+                        activeIndex.copy()));
+            }
+        }
+        return reads.stream()
+                .filter(read -> read.resolve(this))
+                .filter(read -> keep == null || read.index == null || keep.test(read.index))
+                .flatMap(query);
+    }
+
+    private List<Long> sealedGenerations() {
+        List<Long> generations = generations(".log");
+        if (segment != null) {
+            generations.remove(Long.valueOf(generation));
+        }
+        return generations;
+    }
+
+    // Index of a rolled segment; rebuilt by scanning if its .idx is missing
+    LogSegmentIndex sealedIndex(long gen) {
+        LogSegmentIndex index = sealedIndexes.get(gen);
+        if (index != null) return index;
+        File idx = indexPath(gen);
+        try {
+            index = LogSegmentIndex.load(idx);
+        } catch (IOException e) {
+            try {
+                index = LogSegmentIndex.build(segmentPath(gen));
+                index.write(idx);
+            } catch (IOException rebuild) {
+                return null;
+            }
+        }
+        sealedIndexes.put(gen, index);
+        return index;
+    }
+
+    private void roll(long now) throws IOException {
+        if (segment != null) {
+            segment.close();
+            activeIndex.write(indexPath(generation));
+            sealedIndexes.put(generation, activeIndex);
+        }
+        generation++;
+        segment = new BufferedOutputStream(new FileOutputStream(segmentPath(generation)), 1 << 16);
+        activeIndex = new LogSegmentIndex();
+        segmentOpenedAt = now;
+        segmentBytes = 0;
+
+        List<Long> generations = generations(".log");
+        for (int i = 0; i < generations.size() - 1; i++) {
+            long gen = generations.get(i);
+            File file = segmentPath(gen);
+            boolean tooMany = generations.size() - i > maxSegments;
+            if (tooMany || now - file.lastModified() > retentionMillis) {
+                if (archiveRetentionMillis > 0) {
+                    archive(gen);
+                } else {
+                    file.delete();
+                    indexPath(gen).delete();
+                    sealedIndexes.remove(gen);
+                }
+            }
+        }
+        for (long gen : generations(".arc")) {
+            File file = archivePath(gen);
+            if (now - file.lastModified() > archiveRetentionMillis) {
+                file.delete();
+            }
+        }
+    }
+
+    // The segment stays queryable until its archive is in place; the swap
+    // happens under the store lock so no query plans both or neither, and a
+    // query planned before it reads the archive once the segment is gone.
+    private void archive(long gen) {
+        if (!archiving.add(gen)) {
+            return;
+        }
+        archiver.submit(() -> {
+            File tmp = new File(dir, String.format("log-%012d.arc.tmp", gen));
+            try {
+                LogArchive.write(segmentPath(gen), tmp);
+                synchronized (this) {
+                    if (!tmp.renameTo(archivePath(gen))) {
+                        throw new IOException("Cannot replace " + archivePath(gen));
+                    }
+                    segmentPath(gen).delete();
+                    indexPath(gen).delete();
+                    sealedIndexes.remove(gen);
+                }
+            } catch (IOException e) {
+                tmp.delete();
+                System.err.println("Archiving log segment " + gen + " failed: " + e.getMessage());
+            } finally {
+                archiving.remove(gen);
+            }
+        });
+    }
+
+    private File archivePath(long gen) {
+        return new File(dir, String.format("log-%012d.arc", gen));
+    }
+
+    private File segmentPath(long gen) {
+        return new File(dir, String.format("log-%012d.log", gen));
+    }
+
+    private File indexPath(long gen) {
+        return new File(dir, String.format("log-%012d.idx", gen));
+    }
+
+    private List<Long> generations(String suffix) {
+        List<Long> generations = new ArrayList<>();
+        String[] files = dir.list();
+        if (files == null) return generations;
+        for (String file : files) {
+            if (file.startsWith("log-") && file.endsWith(suffix)) {
+                try {
+                    generations.add(Long.parseLong(file.substring(4, file.length() - 4)));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    /**
+     * One segment as seen by a query: its file and index, or the in-memory
+     * tail when the store has no usable disk. If the segment is archived
+     * after the query was planned, its entries are read from the archive;
+     * index is then null when it could no longer be loaded.
+     */
+    private static class SegmentRead {
+        private File file;
+        private File archive;
+        private long gen;
+        private LogSegmentIndex index;
+        private List<LogEntry> memory;
+
+        SegmentRead(File file, File archive, long gen, LogSegmentIndex index) {
+            this.file = file;
+            this.archive = archive;
+            this.gen = gen;
+            this.index = index;
+        }
+
+        SegmentRead(List<LogEntry> memory) {
+            this.memory = memory;
+            this.index = new LogSegmentIndex();
+            for (LogEntry entry : memory) {
+                index.add(entry, 0);
+            }
+        }
+
+        boolean resolve(LogSegmentStore store) {
+            if (index == null) {
+                index = store.sealedIndex(gen);
+            }
+            return index != null || archive.exists();
+        }
+
+        Stream<LogEntry> all() {
+            if (memory != null) return memory.stream();
+            try {
+                if (index != null) return LogSegmentIndex.read(file, 0, index.length);
+            } catch (IOException e) {
+                // Archived since the query was planned
+            }
+            return LogArchive.read(archive, Long.MIN_VALUE, Long.MAX_VALUE, null);
+        }
+
+        Stream<LogEntry> byActor(String actor) {
+            if (memory != null) return memory.stream().filter(e -> Objects.equals(e.getActor(), actor));
+            try {
+                if (index != null) return LogSegmentIndex.readAt(file, index.offsetsOf(actor)).stream();
+            } catch (IOException e) {
+                // Archived since the query was planned
+            }
+            return LogArchive.read(archive, Long.MIN_VALUE, Long.MAX_VALUE, actor);
+        }
+
+        Stream<LogEntry> between(long fromMillis, long toMillis) {
+            Stream<LogEntry> entries;
+            if (memory != null) {
+                entries = memory.stream();
+            } else {
+                entries = null;
+                try {
+                    if (index != null) {
+                        long[] range = index.byteRange(fromMillis, toMillis);
+                        entries = LogSegmentIndex.read(file, range[0], range[1]);
+                    }
+                } catch (IOException e) {
+                    // Archived since the query was planned
+                }
+                if (entries == null) {
+                    entries = LogArchive.read(archive, fromMillis, toMillis, null);
+                }
+            }
+            return entries.filter(e -> e.getTimestamp() >= fromMillis && e.getTimestamp() <= toMillis);
+        }
+    }
+}
+
+/**
+ * Index of one log segment: the byte offset of every entry by actor, the
+ * offset of the first entry in each one-minute time bucket, and the seq and
+ * time bounds. While a segment is active its index is kept in memory; when
+ * it rolls the index is written next to it as log-N.idx, and loading that
+ * file reads only the bounds, buckets and actor directory - an actor's
+ * offsets are read from the file when it is queried.
+ */
+class LogSegmentIndex {
+    static final long BUCKET_MILLIS = 60_000;
+    private static final int MAGIC = 0x4C4F4749;
+
+    long firstSeq = -1;
+    long lastSeq = -1;
+    long minTime = Long.MAX_VALUE;
+    long maxTime = Long.MIN_VALUE;
+    // Bytes of the segment covered by this index
+    long length;
+    private TreeMap<Long, Long> buckets = new TreeMap<>();
+    // Active segment: actor -> offsets
+    private Map<String, OffsetList> actorOffsets = new HashMap<>();
+    // Rolled segment: actor -> {count, file position of its offsets}
+    private Map<String, long[]> actorDirectory;
+    private File file;
+
+    void add(LogEntry entry, long offset) {
+        if (firstSeq < 0) firstSeq = entry.getSeq();
+        lastSeq = entry.getSeq();
+        minTime = Math.min(minTime, entry.getTimestamp());
+        maxTime = Math.max(maxTime, entry.getTimestamp());
+        buckets.putIfAbsent(Math.floorDiv(entry.getTimestamp(), BUCKET_MILLIS), offset);
+        actorOffsets.computeIfAbsent(entry.getActor(), a -> new OffsetList()).add(offset);
+    }
+
+    int countOf(String actor) {
+        if (actorDirectory != null) {
+            long[] slot = actorDirectory.get(actor);
+            return slot == null ? 0 : (int) slot[0];
+        }
+        OffsetList offsets = actorOffsets.get(actor);
+        return offsets == null ? 0 : offsets.size;
+    }
+
+    long[] offsetsOf(String actor) throws IOException {
+        if (actorDirectory == null) {
+            OffsetList offsets = actorOffsets.get(actor);
+            return offsets == null ? new long[0] : Arrays.copyOf(offsets.values, offsets.size);
+        }
+        long[] slot = actorDirectory.get(actor);
+        if (slot == null) return new long[0];
+        byte[] bytes = new byte[(int) slot[0] * 8];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(slot[1]);
+            raf.readFully(bytes);
+        }
+        long[] offsets = new long[(int) slot[0]];
+        java.nio.ByteBuffer.wrap(bytes).asLongBuffer().get(offsets);
+        return offsets;
+    }
+
+    boolean overlaps(long fromMillis, long toMillis) {
+        return firstSeq >= 0 && minTime <= toMillis && maxTime >= fromMillis;
+    }
+
+    // Entries are appended in roughly timestamp order (a producer may be
+    // overtaken by a few milliseconds), so one bucket of slack on either
+    // side is enough to contain every entry in the range.
+    long[] byteRange(long fromMillis, long toMillis) {
+        Map.Entry<Long, Long> start = buckets.ceilingEntry(Math.floorDiv(fromMillis, BUCKET_MILLIS) - 1);
+        Map.Entry<Long, Long> end = buckets.ceilingEntry(Math.floorDiv(toMillis, BUCKET_MILLIS) + 2);
+        return new long[] { start == null ? length : start.getValue(), end == null ? length : end.getValue() };
+    }
+
+    /**
+     * Snapshot of an active index, safe to use after the store lock is
+     * released. Offset arrays are shared: appends only write past the
+     * captured sizes, and growing an array replaces it.
+     */
+    LogSegmentIndex copy() {
+        LogSegmentIndex copy = new LogSegmentIndex();
+        copy.firstSeq = firstSeq;
+        copy.lastSeq = lastSeq;
+        copy.minTime = minTime;
+        copy.maxTime = maxTime;
+        copy.length = length;
+        copy.buckets = new TreeMap<>(buckets);
+        copy.actorOffsets = new HashMap<>();
+        for (Map.Entry<String, OffsetList> entry : actorOffsets.entrySet()) {
+            OffsetList offsets = new OffsetList();
+            offsets.values = entry.getValue().values;
+            offsets.size = entry.getValue().size;
+            copy.actorOffsets.put(entry.getKey(), offsets);
+        }
+        return copy;
+    }
+
+    void write(File target) throws IOException {
+        ByteArrayOutputStream directory = new ByteArrayOutputStream();
+        DataOutputStream dirOut = new DataOutputStream(directory);
+        List<Map.Entry<String, OffsetList>> actors = new ArrayList<>(actorOffsets.entrySet());
+        for (Map.Entry<String, OffsetList> entry : actors) {
+            RecordIO.writeString(dirOut, entry.getKey());
+            dirOut.writeInt(entry.getValue().size);
+        }
+        dirOut.flush();
+
+        File tmp = new File(target.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeLong(firstSeq);
+            out.writeLong(lastSeq);
+            out.writeLong(minTime);
+            out.writeLong(maxTime);
+            out.writeLong(length);
+            out.writeInt(buckets.size());
+            for (Map.Entry<Long, Long> bucket : buckets.entrySet()) {
+                out.writeLong(bucket.getKey());
+                out.writeLong(bucket.getValue());
+            }
+            out.writeInt(directory.size());
+            directory.writeTo(out);
+            for (Map.Entry<String, OffsetList> entry : actors) {
+                OffsetList offsets = entry.getValue();
+                for (int i = 0; i < offsets.size; i++) {
+                    out.writeLong(offsets.values[i]);
+                }
+            }
+        }
+        if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("Cannot write log index " + target);
+        }
+    }
+
+    static LogSegmentIndex load(File file) throws IOException {
+        LogSegmentIndex index = new LogSegmentIndex();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a log index: " + file);
+            }
+            index.firstSeq = in.readLong();
+            index.lastSeq = in.readLong();
+            index.minTime = in.readLong();
+            index.maxTime = in.readLong();
+            index.length = in.readLong();
+            int bucketCount = in.readInt();
+            for (int i = 0; i < bucketCount; i++) {
+                index.buckets.put(in.readLong(), in.readLong());
+            }
+            int directoryLength = in.readInt();
+            byte[] directory = new byte[directoryLength];
+            in.readFully(directory);
+            long position = 4 + 5 * 8 + 4 + 16L * bucketCount + 4 + directoryLength;
+            index.actorDirectory = new HashMap<>();
+            DataInputStream dirIn = new DataInputStream(new ByteArrayInputStream(directory));
+            while (dirIn.available() > 0) {
+                String actor = RecordIO.readString(dirIn);
+                int count = dirIn.readInt();
+                index.actorDirectory.put(actor, new long[] { count, position });
+                position += count * 8L;
+            }
+        } catch (EOFException e) {
+            throw new IOException("Log index " + file + " is incomplete", e);
+        }
+        index.actorOffsets = null;
+        index.file = file;
+        return index;
+    }
+
+    /**
+     * Rebuilds the index of a segment that was not closed cleanly.
+     */
+    static LogSegmentIndex build(File segment) throws IOException {
+        LogSegmentIndex index = new LogSegmentIndex();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(segment), 1 << 16)) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+            long offset = 0;
+            long lineStart = 0;
+            int b;
+            while ((b = in.read()) >= 0) {
+                offset++;
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                LogEntry entry = LogEntry.decode(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                if (entry != null) {
+                    index.add(entry, lineStart);
+                }
+                line.reset();
+                lineStart = offset;
+            }
+            // A torn last line is left out of the index
+            index.length = lineStart;
+        }
+        return index;
+    }
+
+    /**
+     * Entries in bytes [start, end) of a segment, read lazily; the file is
+     * opened before this returns.
+     */
+    static Stream<LogEntry> read(File file, long start, long end) throws IOException {
+        if (end <= start) return Stream.empty();
+        InputStream in = new FileInputStream(file);
+        try {
+            long skipped = 0;
+            while (skipped < start) {
+                long n = in.skip(start - skipped);
+                if (n <= 0) break;
+                skipped += n;
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new BoundedInputStream(in, end - start), StandardCharsets.UTF_8), 1 << 16);
+        return reader.lines().map(LogEntry::decode).filter(Objects::nonNull).onClose(() -> {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+        });
+    }
+
+    static List<LogEntry> readAt(File file, long[] offsets) throws IOException {
+        List<LogEntry> entries = new ArrayList<>(offsets.length);
+        if (offsets.length == 0) return entries;
+        byte[] buffer = new byte[512];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            for (long offset : offsets) {
+                raf.seek(offset);
+                int length = 0;
+                while (true) {
+                    if (length == buffer.length) {
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    }
+                    int n = raf.read(buffer, length, buffer.length - length);
+                    if (n <= 0) break;
+                    int newline = indexOf(buffer, length, length + n, (byte) '\n');
+                    if (newline >= 0) {
+                        length = newline;
+                        break;
+                    }
+                    length += n;
+                }
+                LogEntry entry = LogEntry.decode(new String(buffer, 0, length, StandardCharsets.UTF_8));
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == value) return i;
+        }
+        return -1;
+    }
+
+    private static class OffsetList {
+        long[] values = new long[16];
+        int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
+
+/**
+ * Input stream that ends after a fixed number of bytes.
+ */
+class BoundedInputStream extends FilterInputStream {
+    private long remaining;
+
+    BoundedInputStream(InputStream in, long limit) {
+        super(in);
+        this.remaining = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) return -1;
+        int b = super.read();
+        if (b >= 0) remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining <= 0) return -1;
+        int n = super.read(b, off, (int) Math.min(len, remaining));
+        if (n > 0) remaining -= n;
+        return n;
+    }
+}
+
+/**
+ * Compact binary archive of a rolled log segment. Entries are grouped into
+ * blocks of up to BLOCK_ENTRIES; each block header holds the seq and time
+ * bounds and the block's actor dictionary uncompressed, followed by a
+ * Deflater-compressed body with varint seq and timestamp deltas, actor ids
+ * and per-block dictionary codes for repeated actions. A reader can skip a
+ * block whose time range or actor set does not match without inflating it.
+ */
+class LogArchive {
+    static final int BLOCK_ENTRIES = 4096;
+    private static final int MAGIC = 0x4C415243;
+    private static final int VERSION = 1;
+
+    static void write(File segment, File target) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (Stream<LogEntry> entries = LogSegmentIndex.read(segment, 0, segment.length());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            List<LogEntry> block = new ArrayList<>(BLOCK_ENTRIES);
+            Iterator<LogEntry> it = entries.iterator();
+            while (it.hasNext()) {
+                block.add(it.next());
+                if (block.size() == BLOCK_ENTRIES) {
+                    writeBlock(out, block, deflater);
+                    block.clear();
+                }
+            }
+            if (!block.isEmpty()) {
+                writeBlock(out, block, deflater);
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Entries with fromMillis <= timestamp <= toMillis and, unless actor is
+     * null, that actor; read lazily block by block. The caller must close
+     * the stream.
+     */
+    static Stream<LogEntry> read(File archive, long fromMillis, long toMillis, String actor) {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(archive), 1 << 16));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                in.close();
+                return Stream.empty();
+            }
+        } catch (IOException e) {
+            return Stream.empty();
+        }
+        BlockReader blocks = new BlockReader(in, fromMillis, toMillis, actor);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(blocks, Spliterator.ORDERED), false)
+                .flatMap(List::stream)
+                .onClose(blocks::close);
+    }
+
+    private static void writeBlock(DataOutputStream out, List<LogEntry> block, Deflater deflater) throws IOException {
+        LogEntry first = block.get(0);
+        Map<String, Integer> actors = new LinkedHashMap<>();
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        for (LogEntry entry : block) {
+            actors.putIfAbsent(entry.getActor(), actors.size());
+            minTime = Math.min(minTime, entry.getTimestamp());
+            maxTime = Math.max(maxTime, entry.getTimestamp());
+        }
+
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(block.size() * 16);
+        Map<String, Integer> actions = new HashMap<>();
+        long prevSeq = first.getSeq();
+        long prevTime = first.getTimestamp();
+        for (LogEntry entry : block) {
+            writeVarLong(raw, entry.getSeq() - prevSeq);
+            writeVarLong(raw, zigZag(entry.getTimestamp() - prevTime));
+            writeVarLong(raw, actors.get(entry.getActor()));
+            prevSeq = entry.getSeq();
+            prevTime = entry.getTimestamp();
+
+            // 0 = null, 1 = new literal (gets the next code), n + 2 = code n
+            String action = entry.getAction();
+            Integer code = action == null ? null : actions.get(action);
+            if (action == null) {
+                writeVarLong(raw, 0);
+            } else if (code != null) {
+                writeVarLong(raw, code + 2);
+            } else {
+                writeVarLong(raw, 1);
+                writeString(raw, action);
+                actions.put(action, actions.size());
+            }
+            if (entry.getPhotoId() == null) {
+                writeVarLong(raw, 0);
+            } else {
+                writeVarLong(raw, 1);
+                writeString(raw, entry.getPhotoId());
+            }
+        }
+
+        byte[] input = raw.toByteArray();
+        deflater.reset();
+        deflater.setInput(input);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(input.length / 4 + 64);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            compressed.write(buffer, 0, n);
+        }
+
+        out.writeLong(first.getSeq());
+        out.writeLong(first.getTimestamp());
+        out.writeLong(minTime);
+        out.writeLong(maxTime);
+        out.writeInt(block.size());
+        out.writeInt(actors.size());
+        for (String actor : actors.keySet()) {
+            RecordIO.writeString(out, actor);
+        }
+        out.writeInt(input.length);
+        out.writeInt(compressed.size());
+        compressed.writeTo(out);
+    }
+
+    /**
+     * Yields the matching entries of each block that can contain any.
+     */
+    private static class BlockReader implements Iterator<List<LogEntry>> {
+        private final DataInputStream in;
+        private final long fromMillis;
+        private final long toMillis;
+        private final String actor;
+        private final Inflater inflater = new Inflater();
+        private List<LogEntry> next;
+        private boolean done;
+
+        BlockReader(DataInputStream in, long fromMillis, long toMillis, String actor) {
+            this.in = in;
+            this.fromMillis = fromMillis;
+            this.toMillis = toMillis;
+            this.actor = actor;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && !done) {
+                try {
+                    next = readBlock();
+                } catch (EOFException e) {
+                    done = true;
+                } catch (IOException | DataFormatException e) {
+                    // A damaged block ends the replay of this archive
+                    done = true;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public List<LogEntry> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            List<LogEntry> block = next;
+            next = null;
+            return block;
+        }
+
+        void close() {
+            inflater.end();
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+        }
+
+        // Returns an empty list for a skipped block, so hasNext keeps going
+        private List<LogEntry> readBlock() throws IOException, DataFormatException {
+            long firstSeq = in.readLong();
+            long firstTime = in.readLong();
+            long minTime = in.readLong();
+            long maxTime = in.readLong();
+            int count = in.readInt();
+            int actorCount = in.readInt();
+            String[] actors = new String[actorCount];
+            boolean hasActor = actor == null;
+            for (int i = 0; i < actorCount; i++) {
+                actors[i] = RecordIO.readString(in);
+                hasActor |= actor != null && actor.equals(actors[i]);
+            }
+            int rawLength = in.readInt();
+            int compressedLength = in.readInt();
+            if (!hasActor || maxTime < fromMillis || minTime > toMillis) {
+                skipFully(compressedLength);
+                return Collections.emptyList();
+            }
+
+            byte[] compressed = new byte[compressedLength];
+            in.readFully(compressed);
+            byte[] raw = new byte[rawLength];
+            inflater.reset();
+            inflater.setInput(compressed);
+            int filled = 0;
+            while (filled < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(raw, filled, rawLength - filled);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                filled += n;
+            }
+            if (filled != rawLength) {
+                throw new DataFormatException("Block inflated to " + filled + " of " + rawLength + " bytes");
+            }
+
+            ByteArrayInputStream body = new ByteArrayInputStream(raw);
+            List<String> actions = new ArrayList<>();
+            List<LogEntry> entries = new ArrayList<>();
+            long seq = firstSeq;
+            long time = firstTime;
+            for (int i = 0; i < count; i++) {
+                seq += readVarLong(body);
+                time += unZigZag(readVarLong(body));
+                String entryActor = actors[(int) readVarLong(body)];
+                int code = (int) readVarLong(body);
+                String action = null;
+                if (code == 1) {
+                    action = readString(body);
+                    actions.add(action);
+                } else if (code > 1) {
+                    action = actions.get(code - 2);
+                }
+                String photoId = readVarLong(body) == 0 ? null : readString(body);
+                if (time >= fromMillis && time <= toMillis && (actor == null || actor.equals(entryActor))) {
+                    entries.add(new LogEntry(seq, time, entryActor, action, photoId));
+                }
+            }
+            return entries;
+        }
+
+        private void skipFully(long length) throws IOException {
+            while (length > 0) {
+                long n = in.skip(length);
+                if (n <= 0) throw new EOFException();
+                length -= n;
+            }
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteArrayInputStream in) throws EOFException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new EOFException();
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteArrayInputStream in) throws EOFException {
+        int length = (int) readVarLong(in);
+        byte[] bytes = new byte[length];
+        if (in.read(bytes, 0, length) != length) throw new EOFException();
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -205,6 +205,8 @@ class RegistrationDialog extends JDialog {
         if (user != null) {
             JOptionPane.showMessageDialog(this, "Registration successful!", "Success", JOptionPane.INFORMATION_MESSAGE);
             dispose();
+        } else {
+            JOptionPane.showMessageDialog(this, "Username or email is already taken", "Error", JOptionPane.ERROR_MESSAGE);
         }
     }
 }
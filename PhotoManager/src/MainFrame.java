@@ -5,6 +5,7 @@ import java.awt.event.*;
 import java.io.File;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Main Application Frame - MVC Pattern
@@ -33,6 +34,7 @@ class MainFrame extends JFrame {
         
         initComponents();
         loadPhotos();
+        facade.backfillThumbnails(() -> SwingUtilities.invokeLater(this::loadPhotos));
     }
     
     private void initComponents() {
@@ -90,16 +92,10 @@ class MainFrame extends JFrame {
     private void loadPhotos() {
         photoGridPanel.removeAll();
         
-        List<Photo> photos = PhotoRepository.getInstance().findAll();
-        // Sort by upload date descending
-        photos.sort((p1, p2) -> p2.getUploadDateTime().compareTo(p1.getUploadDateTime()));
-        
-        // Display last 10 photos
-        int count = 0;
+        // Display last 10 photos, newest first, straight from the upload-time index
+        List<Photo> photos = PhotoRepository.getInstance().findLatest(10);
         for (Photo photo : photos) {
-            if (count >= 10) break;
             addPhotoThumbnail(photo);
-            count++;
         }
         
         photoGridPanel.revalidate();
@@ -111,8 +107,18 @@ class MainFrame extends JFrame {
         thumbnailPanel.setBorder(BorderFactory.createLineBorder(Color.GRAY));
         thumbnailPanel.setPreferredSize(new Dimension(250, 280));
         
-        // Image placeholder
+        // Placeholder, replaced once the stored thumbnail has been decoded
         JLabel imageLabel = new JLabel("📷 " + photo.getFilename(), SwingConstants.CENTER);
+        CompletableFuture.supplyAsync(() -> facade.loadThumbnail(photo))
+            .thenAccept(thumbnail -> {
+                if (thumbnail != null) {
+                    SwingUtilities.invokeLater(() -> {
+                        imageLabel.setText(null);
+                        imageLabel.setIcon(new ImageIcon(thumbnail));
+                    });
+                }
+            });
+        imageLabel.setToolTipText(photo.getFilename());
         imageLabel.setPreferredSize(new Dimension(250, 200));
         imageLabel.setOpaque(true);
         imageLabel.setBackground(Color.LIGHT_GRAY);
@@ -182,7 +188,10 @@ class UploadDialog extends JDialog {
     private JTextField hashtagsField;
     private JCheckBox resizeCheck;
     private JCheckBox sepiaCheck;
+    private JCheckBox brightnessCheck;
+    private JSpinner brightnessSpinner;
     private JCheckBox blurCheck;
+    private JSpinner blurRadiusSpinner;
     
     public UploadDialog(JFrame parent, User user, PhotoManagementFacade facade, CommandInvoker invoker) {
         super(parent, "Upload Photo", true);
@@ -190,7 +199,7 @@ class UploadDialog extends JDialog {
         this.facade = facade;
         this.invoker = invoker;
         
-        setSize(500, 400);
+        setSize(500, 440);
         setLocationRelativeTo(parent);
         initComponents();
     }
@@ -241,8 +250,26 @@ class UploadDialog extends JDialog {
         panel.add(sepiaCheck, gbc);
         
         row++; gbc.gridy = row;
+        JPanel brightnessPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+        brightnessCheck = new JCheckBox("Adjust Brightness");
+        brightnessSpinner = new JSpinner(new SpinnerNumberModel(120, 10, 300, 10));
+        brightnessSpinner.setEnabled(false);
+        brightnessCheck.addActionListener(e -> brightnessSpinner.setEnabled(brightnessCheck.isSelected()));
+        brightnessPanel.add(brightnessCheck);
+        brightnessPanel.add(new JLabel("  Percent: "));
+        brightnessPanel.add(brightnessSpinner);
+        panel.add(brightnessPanel, gbc);
+        
+        row++; gbc.gridy = row;
+        JPanel blurPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
         blurCheck = new JCheckBox("Apply Blur");
-        panel.add(blurCheck, gbc);
+        blurRadiusSpinner = new JSpinner(new SpinnerNumberModel(BlurDecorator.DEFAULT_RADIUS, 1, 50, 1));
+        blurRadiusSpinner.setEnabled(false);
+        blurCheck.addActionListener(e -> blurRadiusSpinner.setEnabled(blurCheck.isSelected()));
+        blurPanel.add(blurCheck);
+        blurPanel.add(new JLabel("  Radius: "));
+        blurPanel.add(blurRadiusSpinner);
+        panel.add(blurPanel, gbc);
         
         // Buttons
         row++; gbc.gridy = row;
@@ -286,14 +313,27 @@ class UploadDialog extends JDialog {
         if (sepiaCheck.isSelected()) {
             processor = new SepiaDecorator(processor);
         }
+        if (brightnessCheck.isSelected()) {
+            processor = new BrightnessDecorator(processor, (Integer) brightnessSpinner.getValue());
+        }
         if (blurCheck.isSelected()) {
-            processor = new BlurDecorator(processor);
+            processor = new BlurDecorator(processor, (Integer) blurRadiusSpinner.getValue());
+        }
+        
+        String problem = facade.checkUpload(user, file, processor);
+        if (problem != null) {
+            JOptionPane.showMessageDialog(this, problem, "Cannot Upload", JOptionPane.ERROR_MESSAGE);
+            return;
         }
         
         // Use Command pattern
-        Command uploadCommand = new UploadPhotoCommand(facade, user, file, description, hashtags, processor);
+        UploadPhotoCommand uploadCommand = new UploadPhotoCommand(facade, user, file, description, hashtags, processor);
         invoker.executeCommand(uploadCommand);
         
+        if (uploadCommand.getUploadedPhoto() == null) {
+            JOptionPane.showMessageDialog(this, "Upload failed, see the system log", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
         JOptionPane.showMessageDialog(this, "Photo uploaded successfully!");
         dispose();
     }
@@ -1,4 +1,5 @@
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -22,7 +23,8 @@ public class Photo {
     
     public Photo() {
         this.hashtags = new ArrayList<>();
-        this.uploadDateTime = LocalDateTime.now();
+        // Millisecond precision, as kept by the journal-backed stores
+        this.uploadDateTime = LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS);
     }
     
     // Getters and Setters
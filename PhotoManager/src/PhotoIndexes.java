@@ -0,0 +1,817 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Secondary access paths of PhotoRepository, over PhotoTable rows and the
+ * PhotoSymbols ids of the indexed values. The repository calls update()
+ * and rebuild() under its write lock; queries may run concurrently with
+ * them. Row lists are new arrays the caller may modify.
+ */
+interface PhotoIndexes {
+    /**
+     * Moves row from the before values to the after values; before is null
+     * for an insert and after for a delete.
+     */
+    void update(int row, PhotoKeys before, PhotoKeys after);
+
+    /**
+     * Reindexes every live row of the table, e.g. after the journal is replayed.
+     */
+    void rebuild();
+
+    int countByAuthor(int author);
+
+    int[] rowsByAuthor(int author);
+
+    int countByNameKey(int nameKey);
+
+    int[] rowsByNameKey(int nameKey);
+
+    /**
+     * Upper bound on the rows carrying any of the hashtags.
+     */
+    int estimateByHashtags(int[] tags);
+
+    int[] rowsByHashtags(int[] tags);
+
+    int countBySize(long minSize, long maxSize);
+
+    /**
+     * Rows with a file size in [minSize, maxSize], smallest first.
+     */
+    int[] rowsBySize(long minSize, long maxSize);
+
+    int countByUpload(long fromMillis, long toMillis);
+
+    int estimateByUpload(long fromMillis, long toMillis);
+
+    /**
+     * Rows uploaded in [fromMillis, toMillis], oldest first.
+     */
+    int[] rowsByUpload(long fromMillis, long toMillis);
+
+    /**
+     * Newest first, at most limit rows ordered strictly before the cursor;
+     * rows uploaded at the same millisecond are ordered by row.
+     */
+    int[] latest(long cursorMillis, int cursorRow, int limit);
+}
+
+/**
+ * The indexed values of one row, read from the table before and after a write.
+ */
+final class PhotoKeys {
+    final long uploadMillis;
+    final long fileSize;
+    final int author;
+    final int nameKey;
+    final int[] hashtags;
+
+    private PhotoKeys(long uploadMillis, long fileSize, int author, int nameKey, int[] hashtags) {
+        this.uploadMillis = uploadMillis;
+        this.fileSize = fileSize;
+        this.author = author;
+        this.nameKey = nameKey;
+        this.hashtags = hashtags;
+    }
+
+    static PhotoKeys of(PhotoTable table, int row) {
+        return new PhotoKeys(table.uploadMillis(row), table.fileSize(row), table.authorId(row),
+                PhotoSymbols.nameKeyOf(table.authorName(row)), table.hashtags(row));
+    }
+}
+
+/**
+ * Default indexes, all primitive arrays: sorted row postings per hashtag,
+ * author and author name symbol, and rows sorted by file size and by
+ * upload time. With three hashtags a photo costs about 40 bytes here.
+ */
+class MemoryIndexes implements PhotoIndexes {
+    private final PhotoTable table;
+    private final PostingIndex byHashtag = new PostingIndex();
+    private final PostingIndex byAuthor = new PostingIndex();
+    private final PostingIndex byNameKey = new PostingIndex();
+    private final SortedLongIndex bySize = new SortedLongIndex();
+    private final SortedLongIndex byUpload = new SortedLongIndex();
+
+    MemoryIndexes(PhotoTable table) {
+        this.table = table;
+    }
+
+    @Override
+    public void update(int row, PhotoKeys before, PhotoKeys after) {
+        move(byAuthor, row, before == null ? -1 : before.author, after == null ? -1 : after.author);
+        move(byNameKey, row, before == null ? -1 : before.nameKey, after == null ? -1 : after.nameKey);
+        int[] oldTags = before == null ? TagSet.NONE.ids : before.hashtags;
+        int[] newTags = after == null ? TagSet.NONE.ids : after.hashtags;
+        if (!Arrays.equals(oldTags, newTags)) {
+            for (int tag : oldTags) {
+                byHashtag.remove(tag, row);
+            }
+            for (int tag : newTags) {
+                byHashtag.add(tag, row);
+            }
+        }
+        if (before == null || after == null || before.fileSize != after.fileSize) {
+            if (before != null) bySize.remove(before.fileSize, row);
+            if (after != null) bySize.add(after.fileSize, row);
+        }
+        long oldUpload = before == null ? PhotoTable.NO_UPLOAD_TIME : before.uploadMillis;
+        long newUpload = after == null ? PhotoTable.NO_UPLOAD_TIME : after.uploadMillis;
+        if (oldUpload != newUpload) {
+            if (oldUpload != PhotoTable.NO_UPLOAD_TIME) byUpload.remove(oldUpload, row);
+            if (newUpload != PhotoTable.NO_UPLOAD_TIME) byUpload.add(newUpload, row);
+        }
+    }
+
+    private static void move(PostingIndex index, int row, int from, int to) {
+        if (from == to) return;
+        if (from >= 0) index.remove(from, row);
+        if (to >= 0) index.add(to, row);
+    }
+
+    // Rows are visited in ascending order, so the postings only ever append
+    // and the sorted indexes are sorted once at the end
+    @Override
+    public void rebuild() {
+        byHashtag.clear();
+        byAuthor.clear();
+        byNameKey.clear();
+        int limit = table.rowLimit();
+        long[] sizes = new long[table.size()];
+        long[] uploads = new long[sizes.length];
+        int[] sizeRows = new int[sizes.length];
+        int[] uploadRows = new int[sizes.length];
+        int sized = 0;
+        int uploaded = 0;
+        for (int row = 0; row < limit && sized < sizes.length; row++) {
+            if (!table.isLive(row)) continue;
+            PhotoKeys keys = PhotoKeys.of(table, row);
+            if (keys.author >= 0) byAuthor.add(keys.author, row);
+            if (keys.nameKey >= 0) byNameKey.add(keys.nameKey, row);
+            for (int tag : keys.hashtags) {
+                byHashtag.add(tag, row);
+            }
+            sizes[sized] = keys.fileSize;
+            sizeRows[sized++] = row;
+            if (keys.uploadMillis != PhotoTable.NO_UPLOAD_TIME) {
+                uploads[uploaded] = keys.uploadMillis;
+                uploadRows[uploaded++] = row;
+            }
+        }
+        bySize.load(sizes, sizeRows, sized);
+        byUpload.load(uploads, uploadRows, uploaded);
+    }
+
+    @Override
+    public int countByAuthor(int author) {
+        return byAuthor.count(author);
+    }
+
+    @Override
+    public int[] rowsByAuthor(int author) {
+        return byAuthor.rows(author);
+    }
+
+    @Override
+    public int countByNameKey(int nameKey) {
+        return byNameKey.count(nameKey);
+    }
+
+    @Override
+    public int[] rowsByNameKey(int nameKey) {
+        return byNameKey.rows(nameKey);
+    }
+
+    // Sum of the posting sizes: photos with several of the tags count repeatedly
+    @Override
+    public int estimateByHashtags(int[] tags) {
+        int total = 0;
+        for (int tag : tags) {
+            total += byHashtag.count(tag);
+        }
+        return total;
+    }
+
+    @Override
+    public int[] rowsByHashtags(int[] tags) {
+        if (tags.length == 1) {
+            return byHashtag.rows(tags[0]);
+        }
+        int[][] postings = new int[tags.length][];
+        int total = 0;
+        for (int i = 0; i < tags.length; i++) {
+            postings[i] = byHashtag.rows(tags[i]);
+            total += postings[i].length;
+        }
+        int[] rows = new int[total];
+        int n = 0;
+        for (int[] posting : postings) {
+            System.arraycopy(posting, 0, rows, n, posting.length);
+            n += posting.length;
+        }
+        Arrays.sort(rows);
+        return distinct(rows);
+    }
+
+    private static int[] distinct(int[] sorted) {
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (n == 0 || sorted[n - 1] != sorted[i]) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        return n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+    }
+
+    @Override
+    public int countBySize(long minSize, long maxSize) {
+        return bySize.count(minSize, maxSize);
+    }
+
+    @Override
+    public int[] rowsBySize(long minSize, long maxSize) {
+        return bySize.rows(minSize, maxSize);
+    }
+
+    @Override
+    public int countByUpload(long fromMillis, long toMillis) {
+        return byUpload.count(fromMillis, toMillis);
+    }
+
+    // Constant time: interpolates the range against the span between the
+    // oldest and newest upload
+    @Override
+    public int estimateByUpload(long fromMillis, long toMillis) {
+        long[] span = byUpload.span();
+        if (span == null) return 0;
+        long from = Math.max(fromMillis, span[0]);
+        long to = Math.min(toMillis, span[1]);
+        if (from > to) return 0;
+        int count = byUpload.size();
+        if (span[0] == span[1]) return count;
+        double fraction = (double) (to - from) / (span[1] - span[0]);
+        return (int) Math.ceil(fraction * count);
+    }
+
+    @Override
+    public int[] rowsByUpload(long fromMillis, long toMillis) {
+        return byUpload.rows(fromMillis, toMillis);
+    }
+
+    @Override
+    public int[] latest(long cursorMillis, int cursorRow, int limit) {
+        return byUpload.before(cursorMillis, cursorRow, limit);
+    }
+}
+
+/**
+ * Sorted rows per symbol id (hashtag, author, ...) in arrays indexed by
+ * symbol. Writers take a StampedLock write lock; readers run optimistically
+ * like SortedLongIndex.
+ */
+class PostingIndex {
+    private static final int[] NO_ROWS = new int[0];
+
+    private int[][] postings = new int[16][];
+    private int[] counts = new int[16];
+    private final StampedLock lock = new StampedLock();
+
+    public void add(int symbol, int row) {
+        long stamp = lock.writeLock();
+        try {
+            if (symbol >= postings.length) {
+                int capacity = Math.max(symbol + 1, postings.length * 2);
+                postings = Arrays.copyOf(postings, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+            }
+            int[] rows = postings[symbol] != null ? postings[symbol] : new int[4];
+            int count = counts[symbol];
+            int pos = Arrays.binarySearch(rows, 0, count, row);
+            if (pos >= 0) return;
+            pos = -pos - 1;
+            if (count == rows.length) {
+                rows = Arrays.copyOf(rows, count + (count >> 1) + 4);
+            }
+            System.arraycopy(rows, pos, rows, pos + 1, count - pos);
+            rows[pos] = row;
+            postings[symbol] = rows;
+            counts[symbol] = count + 1;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void remove(int symbol, int row) {
+        long stamp = lock.writeLock();
+        try {
+            if (symbol >= postings.length || postings[symbol] == null) return;
+            int[] rows = postings[symbol];
+            int count = counts[symbol];
+            int pos = Arrays.binarySearch(rows, 0, count, row);
+            if (pos < 0) return;
+            System.arraycopy(rows, pos + 1, rows, pos, count - pos - 1);
+            counts[symbol] = --count;
+            if (count == 0) {
+                postings[symbol] = null;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            postings = new int[16][];
+            counts = new int[16];
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int count(int symbol) {
+        long stamp = lock.tryOptimisticRead();
+        int[] current = counts;
+        int result = symbol >= 0 && symbol < current.length ? current[symbol] : 0;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                result = symbol >= 0 && symbol < counts.length ? counts[symbol] : 0;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+
+    public int[] rows(int symbol) {
+        long stamp = lock.tryOptimisticRead();
+        int[] result = rows(symbol, postings, counts);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                result = rows(symbol, postings, counts);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+
+    // Clamped like SortedLongIndex, for optimistic readers
+    private static int[] rows(int symbol, int[][] postings, int[] counts) {
+        if (symbol < 0 || symbol >= Math.min(postings.length, counts.length)) return NO_ROWS;
+        int[] rows = postings[symbol];
+        return rows == null ? NO_ROWS : Arrays.copyOf(rows, Math.min(counts[symbol], rows.length));
+    }
+}
+
+/**
+ * Rows sorted by a long key (file size, upload time): parallel arrays of
+ * primitive keys and rows in ascending (key, row) order, so range queries
+ * are two binary searches. Writers take a StampedLock write lock; readers
+ * run optimistically and only fall back to a read lock if a write
+ * overlapped them.
+ */
+class SortedLongIndex {
+    private long[] keys = new long[16];
+    private int[] rows = new int[16];
+    private int count;
+    private final StampedLock lock = new StampedLock();
+
+    public void add(long key, int row) {
+        long stamp = lock.writeLock();
+        try {
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                rows = Arrays.copyOf(rows, count * 2);
+            }
+            int pos = lowerBound(keys, rows, count, key, row);
+            System.arraycopy(keys, pos, keys, pos + 1, count - pos);
+            System.arraycopy(rows, pos, rows, pos + 1, count - pos);
+            keys[pos] = key;
+            rows[pos] = row;
+            count++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Replaces the contents with the first n (key, row) pairs, sorting once
+     * instead of inserting one by one (used when bulk loading).
+     */
+    public void load(long[] newKeys, int[] newRows, int n) {
+        sort(newKeys, newRows, n);
+        long stamp = lock.writeLock();
+        try {
+            int capacity = Math.max(16, n);
+            keys = Arrays.copyOf(newKeys, capacity);
+            rows = Arrays.copyOf(newRows, capacity);
+            count = n;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void remove(long key, int row) {
+        long stamp = lock.writeLock();
+        try {
+            int pos = lowerBound(keys, rows, count, key, row);
+            if (pos < count && keys[pos] == key && rows[pos] == row) {
+                System.arraycopy(keys, pos + 1, keys, pos, count - pos - 1);
+                System.arraycopy(rows, pos + 1, rows, pos, count - pos - 1);
+                count--;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int count(long minKey, long maxKey) {
+        if (minKey > maxKey) return 0;
+        long stamp = lock.tryOptimisticRead();
+        int result = count(minKey, maxKey, keys, rows, count);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                result = count(minKey, maxKey, keys, rows, count);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+
+    public int[] rows(long minKey, long maxKey) {
+        if (minKey > maxKey) return new int[0];
+        long stamp = lock.tryOptimisticRead();
+        int[] result = rows(minKey, maxKey, keys, rows, count);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                result = rows(minKey, maxKey, keys, rows, count);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * At most limit rows ordered before (key, row), largest first.
+     */
+    public int[] before(long key, int row, int limit) {
+        long stamp = lock.tryOptimisticRead();
+        int[] result = before(key, row, limit, keys, rows, count);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                result = before(key, row, limit, keys, rows, count);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The smallest and largest key, or null if empty.
+     */
+    public long[] span() {
+        long stamp = lock.readLock();
+        try {
+            return count == 0 ? null : new long[] {keys[0], keys[count - 1]};
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Sorts the first n pairs by (key, row): a bottom-up merge sort over
+     * the parallel arrays.
+     */
+    static void sort(long[] keys, int[] rows, int n) {
+        long[] keyBuffer = new long[n];
+        int[] rowBuffer = new int[n];
+        long[] fromKeys = keys, toKeys = keyBuffer;
+        int[] fromRows = rows, toRows = rowBuffer;
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n);
+                int hi = Math.min(lo + 2 * width, n);
+                int i = lo, j = mid;
+                for (int k = lo; k < hi; k++) {
+                    if (j >= hi || (i < mid && compare(fromKeys[i], fromRows[i], fromKeys[j], fromRows[j]) <= 0)) {
+                        toKeys[k] = fromKeys[i];
+                        toRows[k] = fromRows[i++];
+                    } else {
+                        toKeys[k] = fromKeys[j];
+                        toRows[k] = fromRows[j++];
+                    }
+                }
+            }
+            long[] swapKeys = fromKeys; fromKeys = toKeys; toKeys = swapKeys;
+            int[] swapRows = fromRows; fromRows = toRows; toRows = swapRows;
+        }
+        if (fromKeys != keys) {
+            System.arraycopy(fromKeys, 0, keys, 0, n);
+            System.arraycopy(fromRows, 0, rows, 0, n);
+        }
+    }
+
+    static int compare(long key, int row, long otherKey, int otherRow) {
+        int cmp = Long.compare(key, otherKey);
+        return cmp != 0 ? cmp : Integer.compare(row, otherRow);
+    }
+
+    // An optimistic reader may see arrays and count from different writes;
+    // the bounds are clamped so it never fails before validation discards it.
+    private static int count(long minKey, long maxKey, long[] keys, int[] rows, int count) {
+        int n = Math.min(count, Math.min(keys.length, rows.length));
+        return Math.max(0, upperBound(keys, n, maxKey) - lowerBound(keys, n, minKey));
+    }
+
+    private static int[] rows(long minKey, long maxKey, long[] keys, int[] rows, int count) {
+        int n = Math.min(count, Math.min(keys.length, rows.length));
+        int from = lowerBound(keys, n, minKey);
+        int to = upperBound(keys, n, maxKey);
+        return from >= to ? new int[0] : Arrays.copyOfRange(rows, from, to);
+    }
+
+    private static int[] before(long key, int row, int limit, long[] keys, int[] rows, int count) {
+        int n = Math.min(count, Math.min(keys.length, rows.length));
+        int end = lowerBound(keys, rows, n, key, row);
+        int length = Math.max(0, Math.min(limit, end));
+        int[] result = new int[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = rows[end - 1 - i];
+        }
+        return result;
+    }
+
+    // First position whose (key, row) is >= the given pair
+    private static int lowerBound(long[] keys, int[] rows, int count, long key, int row) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(keys[mid], rows[mid], key, row) < 0) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    // First position whose key is >= the given key
+    private static int lowerBound(long[] keys, int count, long key) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    // First position whose key is > the given key
+    private static int upperBound(long[] keys, int count, long key) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] <= key) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+}
+
+/**
+ * Indexes for the mapped table, which keep nothing per photo on the heap:
+ * every query is a sequential scan of the table's columns, a few
+ * milliseconds per million rows for the fixed-width ones. Counts and
+ * estimates are exact, since they cost the same scan.
+ */
+class ColumnScans implements PhotoIndexes {
+    // Above this, latest() sorts every candidate instead of keeping a top-k
+    private static final int TOP_K_LIMIT = 1024;
+
+    private final PhotoTable table;
+
+    ColumnScans(PhotoTable table) {
+        this.table = table;
+    }
+
+    @Override
+    public void update(int row, PhotoKeys before, PhotoKeys after) {
+    }
+
+    @Override
+    public void rebuild() {
+    }
+
+    @Override
+    public int countByAuthor(int author) {
+        return rowsByAuthor(author).length;
+    }
+
+    @Override
+    public int[] rowsByAuthor(int author) {
+        RowList result = new RowList();
+        int limit = table.rowLimit();
+        for (int row = 0; row < limit; row++) {
+            if (table.authorId(row) == author && table.isLive(row)) {
+                result.add(row, 0);
+            }
+        }
+        return result.rows();
+    }
+
+    @Override
+    public int countByNameKey(int nameKey) {
+        return rowsByNameKey(nameKey).length;
+    }
+
+    @Override
+    public int[] rowsByNameKey(int nameKey) {
+        RowList result = new RowList();
+        int limit = table.rowLimit();
+        for (int row = 0; row < limit; row++) {
+            if (PhotoSymbols.nameKeyOf(table.authorName(row)) == nameKey && table.isLive(row)) {
+                result.add(row, 0);
+            }
+        }
+        return result.rows();
+    }
+
+    @Override
+    public int estimateByHashtags(int[] tags) {
+        return rowsByHashtags(tags).length;
+    }
+
+    @Override
+    public int[] rowsByHashtags(int[] tags) {
+        RowList result = new RowList();
+        if (tags.length == 0) return result.rows();
+        int limit = table.rowLimit();
+        for (int row = 0; row < limit; row++) {
+            if (table.hasAnyHashtag(row, tags)) {
+                result.add(row, 0);
+            }
+        }
+        return result.rows();
+    }
+
+    @Override
+    public int countBySize(long minSize, long maxSize) {
+        int count = 0;
+        int limit = table.rowLimit();
+        for (int row = 0; row < limit; row++) {
+            long size = table.fileSize(row);
+            if (size >= minSize && size <= maxSize && table.isLive(row)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int[] rowsBySize(long minSize, long maxSize) {
+        RowList result = new RowList();
+        int limit = table.rowLimit();
+        for (int row = 0; row < limit; row++) {
+            long size = table.fileSize(row);
+            if (size >= minSize && size <= maxSize && table.isLive(row)) {
+                result.add(row, size);
+            }
+        }
+        return result.sortedRows();
+    }
+
+    @Override
+    public int countByUpload(long fromMillis, long toMillis) {
+        int count = 0;
+        int limit = table.rowLimit();
+        for (int row = 0; row < limit; row++) {
+            if (isUploadedWithin(row, fromMillis, toMillis)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int estimateByUpload(long fromMillis, long toMillis) {
+        return countByUpload(fromMillis, toMillis);
+    }
+
+    @Override
+    public int[] rowsByUpload(long fromMillis, long toMillis) {
+        RowList result = new RowList();
+        int limit = table.rowLimit();
+        for (int row = 0; row < limit; row++) {
+            if (isUploadedWithin(row, fromMillis, toMillis)) {
+                result.add(row, table.uploadMillis(row));
+            }
+        }
+        return result.sortedRows();
+    }
+
+    @Override
+    public int[] latest(long cursorMillis, int cursorRow, int limit) {
+        int k = Math.min(limit, table.size());
+        if (k > TOP_K_LIMIT) {
+            return latestBySorting(cursorMillis, cursorRow, k);
+        }
+        // The k newest seen so far, in ascending order
+        long[] keys = new long[k];
+        int[] rows = new int[k];
+        int count = 0;
+        int rowLimit = table.rowLimit();
+        for (int row = 0; row < rowLimit && k > 0; row++) {
+            long millis = table.uploadMillis(row);
+            if (millis == PhotoTable.NO_UPLOAD_TIME
+                    || SortedLongIndex.compare(millis, row, cursorMillis, cursorRow) >= 0
+                    || (count == k && SortedLongIndex.compare(millis, row, keys[0], rows[0]) <= 0)
+                    || !table.isLive(row)) {
+                continue;
+            }
+            int pos = count;
+            while (pos > 0 && SortedLongIndex.compare(keys[pos - 1], rows[pos - 1], millis, row) > 0) {
+                pos--;
+            }
+            if (count == k) {
+                // Drop the oldest to make room
+                System.arraycopy(keys, 1, keys, 0, pos - 1);
+                System.arraycopy(rows, 1, rows, 0, pos - 1);
+                pos--;
+            } else {
+                System.arraycopy(keys, pos, keys, pos + 1, count - pos);
+                System.arraycopy(rows, pos, rows, pos + 1, count - pos);
+                count++;
+            }
+            keys[pos] = millis;
+            rows[pos] = row;
+        }
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = rows[count - 1 - i];
+        }
+        return result;
+    }
+
+    private int[] latestBySorting(long cursorMillis, int cursorRow, int limit) {
+        RowList candidates = new RowList();
+        int rowLimit = table.rowLimit();
+        for (int row = 0; row < rowLimit; row++) {
+            long millis = table.uploadMillis(row);
+            if (millis != PhotoTable.NO_UPLOAD_TIME && table.isLive(row)
+                    && SortedLongIndex.compare(millis, row, cursorMillis, cursorRow) < 0) {
+                candidates.add(row, millis);
+            }
+        }
+        int[] sorted = candidates.sortedRows();
+        int length = Math.min(limit, sorted.length);
+        int[] result = new int[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = sorted[sorted.length - 1 - i];
+        }
+        return result;
+    }
+
+    private boolean isUploadedWithin(int row, long fromMillis, long toMillis) {
+        long millis = table.uploadMillis(row);
+        return millis != PhotoTable.NO_UPLOAD_TIME && millis >= fromMillis && millis <= toMillis
+                && table.isLive(row);
+    }
+}
+
+/**
+ * Growable list of rows, each with an optional sort key.
+ */
+class RowList {
+    private int[] rows = new int[64];
+    private long[] keys = new long[64];
+    private int count;
+
+    void add(int row, long key) {
+        if (count == rows.length) {
+            rows = Arrays.copyOf(rows, count * 2);
+            keys = Arrays.copyOf(keys, count * 2);
+        }
+        rows[count] = row;
+        keys[count++] = key;
+    }
+
+    int[] rows() {
+        return Arrays.copyOf(rows, count);
+    }
+
+    /**
+     * The rows ordered by (key, row).
+     */
+    int[] sortedRows() {
+        SortedLongIndex.sort(keys, rows, count);
+        return rows();
+    }
+}
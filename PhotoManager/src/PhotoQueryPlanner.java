@@ -0,0 +1,217 @@
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * Cost-based query planner for PhotoSearchCriteria.
+ * Every criterion is backed by a PhotoRepository index: the most selective
+ * one is scanned to produce candidate rows, the rest are probed per row
+ * against the photo table's fields, most selective first, and Photo objects
+ * are fetched only for the survivors.
+ */
+class PhotoQueryPlanner {
+    private PhotoRepository photoRepo;
+
+    public PhotoQueryPlanner(PhotoRepository photoRepo) {
+        this.photoRepo = photoRepo;
+    }
+
+    public PhotoQueryPlan plan(PhotoSearchCriteria criteria) {
+        List<SearchPredicate> predicates = new ArrayList<>();
+        if (criteria.hasHashtags()) {
+            predicates.add(new HashtagPredicate(photoRepo, criteria.getHashtags()));
+        }
+        if (criteria.getAuthor() != null) {
+            predicates.add(new AuthorPredicate(photoRepo, criteria.getAuthor()));
+        }
+        if (criteria.hasSizeRange()) {
+            predicates.add(new SizePredicate(criteria.getMinSizeOrDefault(), criteria.getMaxSizeOrDefault()));
+        }
+        if (criteria.hasDateRange()) {
+            predicates.add(new DatePredicate(criteria.getStartDate(), criteria.getEndDate()));
+        }
+
+        for (SearchPredicate predicate : predicates) {
+            predicate.estimatedRows = predicate.estimate(photoRepo);
+        }
+        predicates.sort(Comparator.comparingInt(p -> p.estimatedRows));
+        return new PhotoQueryPlan(photoRepo, predicates, photoRepo.count());
+    }
+}
+
+/**
+ * Executable plan produced by PhotoQueryPlanner; explain() reports the
+ * chosen steps with estimated and (once executed) actual row counts.
+ */
+class PhotoQueryPlan {
+    private PhotoRepository photoRepo;
+    private List<SearchPredicate> steps;
+    private int totalRows;
+    private int[] actualRows;
+    private boolean executed;
+
+    PhotoQueryPlan(PhotoRepository photoRepo, List<SearchPredicate> steps, int totalRows) {
+        this.photoRepo = photoRepo;
+        this.steps = steps;
+        this.totalRows = totalRows;
+        this.actualRows = new int[steps.size() + 1];
+    }
+
+    public List<Photo> execute() {
+        List<Photo> result = new ArrayList<>();
+        if (steps.isEmpty()) {
+            result = photoRepo.findAll();
+            actualRows[0] = result.size();
+            executed = true;
+            return result;
+        }
+
+        int[] survivors = steps.get(0).scan(photoRepo);
+        int count = survivors.length;
+        actualRows[0] = count;
+        for (int i = 1; i < steps.size(); i++) {
+            SearchPredicate predicate = steps.get(i);
+            int kept = 0;
+            for (int j = 0; j < count; j++) {
+                if (predicate.probe(photoRepo, survivors[j])) {
+                    survivors[kept++] = survivors[j];
+                }
+            }
+            count = kept;
+            actualRows[i] = count;
+        }
+
+        for (int j = 0; j < count; j++) {
+            Photo photo = photoRepo.findByRow(survivors[j]);
+            if (photo != null && matchesAll(photo)) {
+                result.add(photo);
+            }
+        }
+        actualRows[steps.size()] = result.size();
+        executed = true;
+        return result;
+    }
+
+    // A row can be rewritten, or reused by another photo, between its
+    // probes and the fetch; the fetched Photo is what gets checked
+    private boolean matchesAll(Photo photo) {
+        for (SearchPredicate predicate : steps) {
+            if (!predicate.matches(photo)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String explain() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Query plan over ").append(totalRows).append(" photos\n");
+        if (steps.isEmpty()) {
+            sb.append(String.format("  1. FULL SCAN%30s est=%d actual=%s%n", "", totalRows, actual(0)));
+            return sb.toString();
+        }
+        for (int i = 0; i < steps.size(); i++) {
+            SearchPredicate predicate = steps.get(i);
+            String operation = (i == 0 ? (photoRepo.hasIndexes() ? "INDEX SCAN " : "COLUMN SCAN ") : "PROBE      ")
+                    + predicate.describe();
+            sb.append(String.format("  %d. %-40s est=%d sel=%.4f actual=%s%n",
+                    i + 1, operation, predicate.estimatedRows,
+                    totalRows == 0 ? 0.0 : (double) predicate.estimatedRows / totalRows, actual(i)));
+        }
+        sb.append(String.format("  %d. %-40s actual=%s%n", steps.size() + 1, "FETCH photos", actual(steps.size())));
+        return sb.toString();
+    }
+
+    private String actual(int step) {
+        return executed ? String.valueOf(actualRows[step]) : "-";
+    }
+}
+
+/**
+ * One index-backed search criterion: it can be scanned to produce candidate
+ * rows, or probed for a single row without materialising the Photo.
+ */
+abstract class SearchPredicate {
+    int estimatedRows;
+
+    abstract String describe();
+    abstract int estimate(PhotoRepository repo);
+    abstract int[] scan(PhotoRepository repo);
+    abstract boolean probe(PhotoRepository repo, int row);
+    abstract boolean matches(Photo photo);
+}
+
+class HashtagPredicate extends SearchPredicate {
+    private List<String> hashtags;
+    private int[] tagIds;
+
+    HashtagPredicate(PhotoRepository repo, List<String> hashtags) {
+        this.hashtags = hashtags;
+        this.tagIds = repo.hashtagIds(hashtags);
+    }
+
+    String describe() { return "hashtag in " + hashtags; }
+    int estimate(PhotoRepository repo) { return repo.estimateByHashtags(tagIds); }
+    int[] scan(PhotoRepository repo) { return repo.rowsByHashtags(tagIds); }
+    boolean probe(PhotoRepository repo, int row) { return repo.hasAnyHashtag(row, tagIds); }
+    boolean matches(Photo photo) {
+        return photo.getHashtags() != null && !Collections.disjoint(photo.getHashtags(), hashtags);
+    }
+}
+
+class AuthorPredicate extends SearchPredicate {
+    private String author;
+    private int nameKey;
+
+    AuthorPredicate(PhotoRepository repo, String author) {
+        this.author = author;
+        this.nameKey = repo.nameKeyOf(author);
+    }
+
+    String describe() { return "author = " + author; }
+    int estimate(PhotoRepository repo) { return repo.countByNameKey(nameKey); }
+    int[] scan(PhotoRepository repo) { return repo.rowsByNameKey(nameKey); }
+    boolean probe(PhotoRepository repo, int row) { return repo.hasNameKey(row, nameKey); }
+    boolean matches(Photo photo) { return PhotoSymbols.findNameKey(photo.getAuthorName()) == nameKey; }
+}
+
+class SizePredicate extends SearchPredicate {
+    private long minSize;
+    private long maxSize;
+
+    SizePredicate(long minSize, long maxSize) {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+    }
+
+    String describe() { return "size in [" + minSize + ", " + (maxSize == Long.MAX_VALUE ? "*" : maxSize) + "]"; }
+    int estimate(PhotoRepository repo) { return repo.countBySizeRange(minSize, maxSize); }
+    int[] scan(PhotoRepository repo) { return repo.rowsBySizeRange(minSize, maxSize); }
+    boolean probe(PhotoRepository repo, int row) { return repo.isSizeWithin(row, minSize, maxSize); }
+    boolean matches(Photo photo) { return photo.getFileSize() >= minSize && photo.getFileSize() <= maxSize; }
+}
+
+class DatePredicate extends SearchPredicate {
+    private LocalDateTime startDate;
+    private LocalDateTime endDate;
+    private long fromMillis;
+    private long toMillis;
+
+    DatePredicate(LocalDateTime startDate, LocalDateTime endDate) {
+        this.startDate = startDate;
+        this.endDate = endDate;
+        this.fromMillis = PhotoRepository.lowerMillis(startDate);
+        this.toMillis = PhotoRepository.upperMillis(endDate);
+    }
+
+    String describe() {
+        return "uploaded in [" + (startDate == null ? "*" : startDate.toLocalDate())
+                + ", " + (endDate == null ? "*" : endDate.toLocalDate()) + "]";
+    }
+    int estimate(PhotoRepository repo) { return repo.estimateByUploadRange(fromMillis, toMillis); }
+    int[] scan(PhotoRepository repo) { return repo.rowsByUploadRange(fromMillis, toMillis); }
+    boolean probe(PhotoRepository repo, int row) { return repo.isUploadedWithin(row, fromMillis, toMillis); }
+    boolean matches(Photo photo) {
+        long millis = PhotoTable.toMillis(photo.getUploadDateTime());
+        return millis != PhotoTable.NO_UPLOAD_TIME && millis >= fromMillis && millis <= toMillis;
+    }
+}
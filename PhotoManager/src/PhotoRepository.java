@@ -1,48 +1,450 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Repository Pattern with Singleton - Data Layer
+ * Photos live in a PhotoTable, one row each, and the secondary indexes
+ * (PhotoIndexes) hold rows and symbol ids rather than photo ids or Photo
+ * objects; a Photo is only built for a photo a caller actually gets back.
+ * Reads are lock-free; writers are serialized so a save or delete updates
+ * the table and all indexes together.
+ * Every write is journaled to a WriteAheadLog and replayed on startup.
  */
 public class PhotoRepository {
-    private static PhotoRepository instance;
-    private Map<String, Photo> photos;
+    private PhotoTable photos;
+    private PhotoIndexes indexes;
+    private final Object writeLock = new Object();
+    // Bumped by every write; findAll() snapshots are reused while it is unchanged
+    private volatile long version;
+    private final AtomicReference<Snapshot<Photo>> snapshot = new AtomicReference<>();
+    private WriteAheadLog<Photo> journal;
+    // While replaying the journal the indexes are rebuilt once at the end
+    private boolean bulkLoading;
 
     private PhotoRepository() {
-        photos = new HashMap<>();
+        photos = createTable();
+        indexes = photos instanceof MappedPhotoTable ? new ColumnScans(photos) : new MemoryIndexes(photos);
+
+        WriteAheadLog<Photo> wal = new WriteAheadLog<>("photos", new PhotoRecordCodec(), this::scanAll);
+        try {
+            bulkLoading = true;
+            wal.recover(this::applySave, this::applyDelete);
+            journal = wal;
+            Logger.getInstance().log("PhotoRepository", "Recovered {} photos", photos.size());
+        } catch (IOException e) {
+            Logger.getInstance().log("PhotoRepository", "Journal unavailable, photos will not persist: {}", e.getMessage());
+        } finally {
+            bulkLoading = false;
+            indexes.rebuild();
+        }
     }
 
-    public static PhotoRepository getInstance() {
-        if (instance == null) {
-            instance = new PhotoRepository();
+    // -Dphotomanager.photo.store=mapped keeps photo metadata in off-heap mapped columns
+    private static PhotoTable createTable() {
+        if ("mapped".equals(System.getProperty("photomanager.photo.store"))) {
+            try {
+                return new MappedPhotoTable(new File(WriteAheadLog.DATA_PATH, "columns"));
+            } catch (IOException e) {
+                Logger.getInstance().log("PhotoRepository", "Mapped store unavailable, using heap: {}", e.getMessage());
+            }
         }
-        return instance;
+        return new HeapPhotoTable();
+    }
+
+    // Initialization-on-demand holder: lazy and race-free without locking
+    private static class Holder {
+        static final PhotoRepository INSTANCE = new PhotoRepository();
+    }
+
+    public static PhotoRepository getInstance() {
+        return Holder.INSTANCE;
     }
 
-    public void save(Photo photo) {
-        photos.put(photo.getPhotoId(), photo);
-        Logger.getInstance().log("PhotoRepository", "Photo saved: " + photo.getFilename());
+    /**
+     * Saves the photo, or returns false if the journal could not persist it;
+     * the change is then undone in memory as well.
+     */
+    public boolean save(Photo photo) {
+        long seq = 0;
+        Photo previous;
+        synchronized (writeLock) {
+            if (journal != null && (seq = journal.appendSave(photo)) < 0) {
+                Logger.getInstance().logPhoto("PhotoRepository", photo.getPhotoId(), "Photo not saved, journal failed: {}", photo.getPhotoId());
+                return false;
+            }
+            previous = findById(photo.getPhotoId());
+            applySave(photo);
+        }
+        if (journal != null && !journal.awaitDurable(seq)) {
+            undo(photo.getPhotoId(), previous);
+            Logger.getInstance().logPhoto("PhotoRepository", photo.getPhotoId(), "Photo not persisted: {}", photo.getPhotoId());
+            return false;
+        }
+        Logger.getInstance().logPhoto("PhotoRepository", photo.getPhotoId(), "Photo saved: {}", photo.getFilename());
+        return true;
     }
 
     public Photo findById(String photoId) {
-        return photos.get(photoId);
+        Photo photo = findByRow(photos.rowOf(photoId));
+        // The row may have been handed to another photo since it was looked up
+        return photo != null && photo.getPhotoId().equals(photoId) ? photo : null;
     }
 
+    /**
+     * Immutable snapshot of all photos, shared by readers until the next
+     * write. It holds a Photo per row while cached, so prefer count(), the
+     * finders or scanAll() where the whole list is not needed.
+     */
     public List<Photo> findAll() {
-        return new ArrayList<>(photos.values());
+        return Snapshot.read(snapshot, () -> version, scanAll());
+    }
+
+    /**
+     * Every photo, built one at a time as the iteration reaches it, so a
+     * pass over all of them does not hold them all. Writes made during the
+     * iteration may or may not be seen.
+     */
+    public Collection<Photo> scanAll() {
+        return new AbstractCollection<Photo>() {
+            @Override
+            public Iterator<Photo> iterator() {
+                return new Iterator<Photo>() {
+                    private int row;
+                    private Photo next = advance();
+
+                    private Photo advance() {
+                        int limit = photos.rowLimit();
+                        while (row < limit) {
+                            Photo photo = photos.get(row++);
+                            if (photo != null) {
+                                return photo;
+                            }
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    @Override
+                    public Photo next() {
+                        if (next == null) {
+                            throw new NoSuchElementException();
+                        }
+                        Photo photo = next;
+                        next = advance();
+                        return photo;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return photos.size();
+            }
+        };
+    }
+
+    public int count() {
+        return photos.size();
+    }
+
+    public long totalFileSize() {
+        return photos.totalFileSize();
     }
 
     public List<Photo> findByAuthor(String authorId) {
-        List<Photo> result = new ArrayList<>();
-        for (Photo photo : photos.values()) {
-            if (photo.getAuthorId().equals(authorId)) {
+        int author = PhotoSymbols.AUTHOR_IDS.find(authorId);
+        return author < 0 ? new ArrayList<>() : fetch(indexes.rowsByAuthor(author));
+    }
+
+    public int countByAuthor(String authorId) {
+        int author = PhotoSymbols.AUTHOR_IDS.find(authorId);
+        return author < 0 ? 0 : indexes.countByAuthor(author);
+    }
+
+    /**
+     * Upper bound on the number of photos carrying any of the hashtags.
+     */
+    public int estimateByHashtags(Collection<String> hashtags) {
+        return estimateByHashtags(hashtagIds(hashtags));
+    }
+
+    public int countByAuthorName(String authorName) {
+        return countByNameKey(nameKeyOf(authorName));
+    }
+
+    public List<Photo> findByHashtags(Collection<String> hashtags) {
+        return fetch(rowsByHashtags(hashtagIds(hashtags)));
+    }
+
+    /**
+     * The newest photos first, at most limit of them.
+     */
+    public List<Photo> findLatest(int limit) {
+        return fetch(indexes.latest(Long.MAX_VALUE, Integer.MAX_VALUE, limit));
+    }
+
+    /**
+     * Next page of the newest-first feed: photos uploaded strictly before the
+     * cursor photo (the last one of the previous page), at most limit of them.
+     */
+    public List<Photo> findLatestAfter(LocalDateTime cursorTime, String cursorPhotoId, int limit) {
+        // Without the cursor's row, everything uploaded at cursorTime is skipped
+        return fetch(indexes.latest(PhotoTable.toMillis(cursorTime), photos.rowOf(cursorPhotoId), limit));
+    }
+
+    /**
+     * Photos uploaded within [start, end] in ascending upload order.
+     * A null bound leaves that side of the range open.
+     */
+    public List<Photo> findByUploadRange(LocalDateTime start, LocalDateTime end) {
+        return fetch(rowsByUploadRange(lowerMillis(start), upperMillis(end)));
+    }
+
+    public int countByUploadRange(LocalDateTime start, LocalDateTime end) {
+        return indexes.countByUpload(lowerMillis(start), upperMillis(end));
+    }
+
+    /**
+     * Estimate of countByUploadRange; constant-time with the in-memory indexes.
+     */
+    public int estimateByUploadRange(LocalDateTime start, LocalDateTime end) {
+        return estimateByUploadRange(lowerMillis(start), upperMillis(end));
+    }
+
+    /**
+     * Photos whose file size lies within [minSize, maxSize], smallest first.
+     */
+    public List<Photo> findBySizeRange(long minSize, long maxSize) {
+        return fetch(rowsBySizeRange(minSize, maxSize));
+    }
+
+    public int countBySizeRange(long minSize, long maxSize) {
+        return indexes.countBySize(minSize, maxSize);
+    }
+
+    // Row-level access for PhotoQueryPlanner: symbols are resolved once per
+    // query, and probes read single fields of the row without a Photo
+
+    /**
+     * False if searches scan table columns (the mapped backend) instead of
+     * using in-memory indexes.
+     */
+    boolean hasIndexes() {
+        return !(indexes instanceof ColumnScans);
+    }
+
+    Photo findByRow(int row) {
+        return row < 0 ? null : photos.get(row);
+    }
+
+    /**
+     * Symbol ids of the hashtags that some photo has ever carried.
+     */
+    int[] hashtagIds(Collection<String> hashtags) {
+        int[] ids = new int[hashtags.size()];
+        int n = 0;
+        for (String tag : hashtags) {
+            int id = PhotoSymbols.HASHTAGS.find(tag);
+            if (id >= 0) {
+                ids[n++] = id;
+            }
+        }
+        return Arrays.copyOf(ids, n);
+    }
+
+    int estimateByHashtags(int[] tags) {
+        return indexes.estimateByHashtags(tags);
+    }
+
+    int[] rowsByHashtags(int[] tags) {
+        return indexes.rowsByHashtags(tags);
+    }
+
+    boolean hasAnyHashtag(int row, int[] tags) {
+        return photos.hasAnyHashtag(row, tags);
+    }
+
+    int nameKeyOf(String authorName) {
+        return PhotoSymbols.findNameKey(authorName);
+    }
+
+    int countByNameKey(int nameKey) {
+        return nameKey < 0 ? 0 : indexes.countByNameKey(nameKey);
+    }
+
+    int[] rowsByNameKey(int nameKey) {
+        return nameKey < 0 ? new int[0] : indexes.rowsByNameKey(nameKey);
+    }
+
+    boolean hasNameKey(int row, int nameKey) {
+        return nameKey >= 0 && PhotoSymbols.nameKeyOf(photos.authorName(row)) == nameKey;
+    }
+
+    int[] rowsBySizeRange(long minSize, long maxSize) {
+        return indexes.rowsBySize(minSize, maxSize);
+    }
+
+    boolean isSizeWithin(int row, long minSize, long maxSize) {
+        long size = photos.fileSize(row);
+        return size >= minSize && size <= maxSize;
+    }
+
+    int estimateByUploadRange(long fromMillis, long toMillis) {
+        return indexes.estimateByUpload(fromMillis, toMillis);
+    }
+
+    int[] rowsByUploadRange(long fromMillis, long toMillis) {
+        return indexes.rowsByUpload(fromMillis, toMillis);
+    }
+
+    boolean isUploadedWithin(int row, long fromMillis, long toMillis) {
+        long millis = photos.uploadMillis(row);
+        return millis != PhotoTable.NO_UPLOAD_TIME && millis >= fromMillis && millis <= toMillis;
+    }
+
+    // Range bounds in epoch millis; a null bound leaves that side open
+    static long lowerMillis(LocalDateTime start) {
+        return start == null ? Long.MIN_VALUE : PhotoTable.toMillis(start);
+    }
+
+    static long upperMillis(LocalDateTime end) {
+        return end == null ? Long.MAX_VALUE : PhotoTable.toMillis(end);
+    }
+
+    private List<Photo> fetch(int[] rows) {
+        List<Photo> result = new ArrayList<>(rows.length);
+        for (int row : rows) {
+            Photo photo = photos.get(row);
+            if (photo != null) {
                 result.add(photo);
             }
         }
         return result;
     }
-    
-    public void delete(String photoId) {
-        photos.remove(photoId);
-        Logger.getInstance().log("PhotoRepository", "Photo deleted: " + photoId);
+
+    /**
+     * Deletes the photo, or returns false if the journal could not persist
+     * the deletion; the photo is then restored in memory as well.
+     */
+    public boolean delete(String photoId) {
+        long seq = 0;
+        Photo previous;
+        synchronized (writeLock) {
+            if (journal != null && (seq = journal.appendDelete(photoId)) < 0) {
+                Logger.getInstance().logPhoto("PhotoRepository", photoId, "Photo not deleted, journal failed: {}", photoId);
+                return false;
+            }
+            previous = findById(photoId);
+            applyDelete(photoId);
+        }
+        if (journal != null && !journal.awaitDurable(seq)) {
+            undo(photoId, previous);
+            Logger.getInstance().logPhoto("PhotoRepository", photoId, "Photo deletion not persisted: {}", photoId);
+            return false;
+        }
+        Logger.getInstance().logPhoto("PhotoRepository", photoId, "Photo deleted: {}", photoId);
+        return true;
+    }
+
+    // Puts back what the journal lost. Once the journal has failed no later
+    // write reaches memory, so nothing newer is overwritten.
+    private void undo(String photoId, Photo previous) {
+        if (previous == null) {
+            applyDelete(photoId);
+        } else {
+            applySave(previous);
+        }
+    }
+
+    // In-memory part of save/delete, also used when replaying the journal.
+    // The old index keys are read from the table before the row changes.
+    private void applySave(Photo photo) {
+        synchronized (writeLock) {
+            int row = photos.rowOf(photo.getPhotoId());
+            PhotoKeys before = row < 0 || bulkLoading ? null : PhotoKeys.of(photos, row);
+            row = photos.put(photo);
+            if (!bulkLoading) {
+                indexes.update(row, before, PhotoKeys.of(photos, row));
+            }
+            version++;
+        }
+    }
+
+    private void applyDelete(String photoId) {
+        synchronized (writeLock) {
+            int row = photos.rowOf(photoId);
+            if (row < 0) {
+                return;
+            }
+            if (!bulkLoading) {
+                indexes.update(row, PhotoKeys.of(photos, row), null);
+            }
+            photos.remove(row);
+            version++;
+        }
+    }
+}
+
+/**
+ * Journal encoding of a Photo.
+ */
+class PhotoRecordCodec implements RecordCodec<Photo> {
+    @Override
+    public String keyOf(Photo photo) {
+        return photo.getPhotoId();
+    }
+
+    @Override
+    public void write(Photo photo, DataOutputStream out) throws IOException {
+        RecordIO.writeString(out, photo.getPhotoId());
+        RecordIO.writeString(out, photo.getFilename());
+        RecordIO.writeString(out, photo.getDescription());
+        List<String> hashtags = photo.getHashtags() != null ? photo.getHashtags() : Collections.<String>emptyList();
+        out.writeInt(hashtags.size());
+        for (String tag : hashtags) {
+            RecordIO.writeString(out, tag);
+        }
+        RecordIO.writeString(out, photo.getAuthorId());
+        RecordIO.writeString(out, photo.getAuthorName());
+        RecordIO.writeDateTime(out, photo.getUploadDateTime());
+        out.writeLong(photo.getFileSize());
+        RecordIO.writeString(out, photo.getFormat());
+        out.writeInt(photo.getWidth());
+        out.writeInt(photo.getHeight());
+        RecordIO.writeString(out, photo.getStoragePath());
+        RecordIO.writeString(out, photo.getThumbnailPath());
+    }
+
+    @Override
+    public Photo read(DataInputStream in) throws IOException {
+        Photo photo = new Photo();
+        photo.setPhotoId(RecordIO.readString(in));
+        photo.setFilename(RecordIO.readString(in));
+        photo.setDescription(RecordIO.readString(in));
+        int tagCount = in.readInt();
+        List<String> hashtags = new ArrayList<>(tagCount);
+        for (int i = 0; i < tagCount; i++) {
+            hashtags.add(RecordIO.readString(in));
+        }
+        photo.setHashtags(hashtags);
+        photo.setAuthorId(RecordIO.readString(in));
+        photo.setAuthorName(RecordIO.readString(in));
+        photo.setUploadDateTime(RecordIO.readDateTime(in));
+        photo.setFileSize(in.readLong());
+        photo.setFormat(RecordIO.readString(in));
+        photo.setWidth(in.readInt());
+        photo.setHeight(in.readInt());
+        photo.setStoragePath(RecordIO.readString(in));
+        photo.setThumbnailPath(RecordIO.readString(in));
+        return photo;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,1084 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntFunction;
+
+/**
+ * Primary storage behind PhotoRepository. Each photo occupies one row, a
+ * small int that stays the same while the photo exists: an update rewrites
+ * the row in place and a deleted photo's row is reused. The indexed fields
+ * can be read per row without building a Photo. The repository serializes
+ * all writes; implementations must allow reads concurrently with one
+ * writer, and a read racing a write may see the row's old or new values.
+ */
+interface PhotoTable {
+    // Stored in place of a null upload time
+    long NO_UPLOAD_TIME = Long.MIN_VALUE;
+
+    /**
+     * The row holding photoId, or -1.
+     */
+    int rowOf(String photoId);
+
+    /**
+     * Stores photo in its current row, or in a free one, and returns the row.
+     */
+    int put(Photo photo);
+
+    void remove(int row);
+
+    /**
+     * A new Photo with the row's values, or null if the row is free.
+     */
+    Photo get(int row);
+
+    boolean isLive(int row);
+
+    /**
+     * Every row in use is below this.
+     */
+    int rowLimit();
+
+    int size();
+
+    long totalFileSize();
+
+    long uploadMillis(int row);
+
+    long fileSize(int row);
+
+    // Symbol ids in PhotoSymbols.AUTHOR_IDS and AUTHOR_NAMES, -1 for none
+    int authorId(int row);
+
+    int authorName(int row);
+
+    /**
+     * The row's PhotoSymbols.HASHTAGS ids; callers must not modify the array.
+     */
+    int[] hashtags(int row);
+
+    boolean hasAnyHashtag(int row, int[] tags);
+
+    static long toMillis(LocalDateTime time) {
+        return time == null ? NO_UPLOAD_TIME : time.toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    static LocalDateTime fromMillis(long millis) {
+        return millis == NO_UPLOAD_TIME ? null
+                : LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000L),
+                        (int) Math.floorMod(millis, 1000L) * 1_000_000, ZoneOffset.UTC);
+    }
+}
+
+/**
+ * Symbol tables shared by the photo tables and indexes, so a value that
+ * repeats across photos is stored once and compared as an int.
+ */
+final class PhotoSymbols {
+    static final SymbolTable AUTHOR_IDS = new SymbolTable();
+    static final SymbolTable AUTHOR_NAMES = new SymbolTable();
+    static final SymbolTable HASHTAGS = new SymbolTable();
+    static final SymbolTable FORMATS = new SymbolTable();
+    static final SymbolTable DIRECTORIES = new SymbolTable();
+    // Lower-cased author names, the keys name searches match on
+    static final SymbolTable NAME_KEYS = new SymbolTable();
+    // AUTHOR_NAMES id -> NAME_KEYS id + 1, 0 until first asked for
+    private static volatile int[] nameKeys = new int[16];
+
+    private PhotoSymbols() {
+    }
+
+    /**
+     * Interns an author name and its name key, so findNameKey() knows
+     * every name stored.
+     */
+    static int authorNameId(String authorName) {
+        int id = AUTHOR_NAMES.idOf(authorName);
+        nameKeyOf(id);
+        return id;
+    }
+
+    /**
+     * The name key of an AUTHOR_NAMES symbol, or -1 for none.
+     */
+    static int nameKeyOf(int authorName) {
+        if (authorName < 0) return -1;
+        int[] keys = nameKeys;
+        if (authorName < keys.length && keys[authorName] != 0) {
+            return keys[authorName] - 1;
+        }
+        return addNameKey(authorName);
+    }
+
+    /**
+     * The name key an author name search matches, or -1 if no photo has
+     * ever had that name.
+     */
+    static int findNameKey(String authorName) {
+        return authorName == null ? -1 : NAME_KEYS.find(authorName.toLowerCase(Locale.ROOT));
+    }
+
+    private static synchronized int addNameKey(int authorName) {
+        int[] keys = nameKeys;
+        if (authorName >= keys.length) {
+            keys = Arrays.copyOf(keys, Math.max(keys.length * 2, authorName + 1));
+        }
+        if (keys[authorName] == 0) {
+            keys[authorName] = NAME_KEYS.idOf(AUTHOR_NAMES.valueOf(authorName).toLowerCase(Locale.ROOT)) + 1;
+        }
+        nameKeys = keys;
+        return keys[authorName] - 1;
+    }
+}
+
+/**
+ * Default backend: an array of immutable CompactPhoto records indexed by
+ * row. get() materializes a fresh Photo; callers change a photo by saving
+ * it back through the repository.
+ */
+class HeapPhotoTable implements PhotoTable {
+    private volatile CompactPhoto[] records = new CompactPhoto[16];
+    private final PhotoIdMap rows = new PhotoIdMap(row -> {
+        CompactPhoto record = record(row);
+        return record == null ? null : record.photoId;
+    });
+    private final RowAllocator allocator = new RowAllocator();
+    private volatile int size;
+
+    @Override
+    public int rowOf(String photoId) {
+        return rows.get(photoId);
+    }
+
+    @Override
+    public int put(Photo photo) {
+        CompactPhoto record = new CompactPhoto(photo);
+        int row = rows.get(photo.getPhotoId());
+        if (row >= 0) {
+            records[row] = record;
+            return row;
+        }
+        row = allocator.allocate();
+        if (row >= records.length) {
+            records = Arrays.copyOf(records, records.length * 2);
+        }
+        records[row] = record;
+        rows.put(photo.getPhotoId(), row);
+        size++;
+        return row;
+    }
+
+    @Override
+    public void remove(int row) {
+        CompactPhoto record = record(row);
+        if (record == null) return;
+        rows.remove(record.photoId);
+        records[row] = null;
+        allocator.release(row);
+        size--;
+    }
+
+    @Override
+    public Photo get(int row) {
+        CompactPhoto record = record(row);
+        return record == null ? null : record.toPhoto();
+    }
+
+    @Override
+    public boolean isLive(int row) {
+        return record(row) != null;
+    }
+
+    @Override
+    public int rowLimit() {
+        return allocator.limit();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long totalFileSize() {
+        long total = 0;
+        for (CompactPhoto record : records) {
+            if (record != null) {
+                total += record.fileSize;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public long uploadMillis(int row) {
+        CompactPhoto record = record(row);
+        return record == null ? NO_UPLOAD_TIME : record.uploadMillis;
+    }
+
+    @Override
+    public long fileSize(int row) {
+        CompactPhoto record = record(row);
+        return record == null ? 0 : record.fileSize;
+    }
+
+    @Override
+    public int authorId(int row) {
+        CompactPhoto record = record(row);
+        return record == null ? -1 : record.authorId;
+    }
+
+    @Override
+    public int authorName(int row) {
+        CompactPhoto record = record(row);
+        return record == null ? -1 : record.authorName;
+    }
+
+    @Override
+    public int[] hashtags(int row) {
+        CompactPhoto record = record(row);
+        return record == null ? TagSet.NONE.ids : record.hashtags.ids;
+    }
+
+    @Override
+    public boolean hasAnyHashtag(int row, int[] tags) {
+        for (int tag : hashtags(row)) {
+            for (int wanted : tags) {
+                if (tag == wanted) return true;
+            }
+        }
+        return false;
+    }
+
+    private CompactPhoto record(int row) {
+        CompactPhoto[] current = records;
+        return row >= 0 && row < current.length ? current[row] : null;
+    }
+}
+
+/**
+ * Immutable, compact in-memory form of a Photo (about a quarter of its
+ * retained size). Values that repeat across photos - author id and name,
+ * hashtags, format and storage directories - are ints into PhotoSymbols;
+ * the upload time is epoch millis; the remaining per-photo strings are
+ * packed into one UTF-8 byte array instead of separate String objects.
+ */
+final class CompactPhoto {
+    // Distinct hashtag combinations, shared by every photo that uses them
+    private static final Map<TagSet, TagSet> TAG_SETS = new ConcurrentHashMap<>();
+    // String encoding in the packed array: varint 0 = null, 1 = same as the
+    // file name (for storage/thumbnail names), n + 2 = n UTF-8 bytes follow
+    private static final int NULL_STRING = 0;
+    private static final int SAME_AS_FILENAME = 1;
+
+    final long uploadMillis;
+    final long fileSize;
+    final int authorId;
+    final int authorName;
+    final int format;
+    final int width;
+    final int height;
+    final int storageDir;
+    final int thumbnailDir;
+    final TagSet hashtags;
+    final String photoId;
+    // filename, description, storage name, thumbnail name
+    final byte[] strings;
+
+    CompactPhoto(Photo photo) {
+        uploadMillis = PhotoTable.toMillis(photo.getUploadDateTime());
+        fileSize = photo.getFileSize();
+        authorId = PhotoSymbols.AUTHOR_IDS.idOf(photo.getAuthorId());
+        authorName = PhotoSymbols.authorNameId(photo.getAuthorName());
+        format = PhotoSymbols.FORMATS.idOf(photo.getFormat());
+        width = photo.getWidth();
+        height = photo.getHeight();
+        storageDir = PhotoSymbols.DIRECTORIES.idOf(directoryOf(photo.getStoragePath()));
+        thumbnailDir = PhotoSymbols.DIRECTORIES.idOf(directoryOf(photo.getThumbnailPath()));
+
+        List<String> tags = photo.getHashtags();
+        if (tags == null || tags.isEmpty()) {
+            hashtags = TagSet.NONE;
+        } else {
+            int[] ids = new int[tags.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = PhotoSymbols.HASHTAGS.idOf(tags.get(i));
+            }
+            TagSet tagSet = new TagSet(ids);
+            TagSet shared = TAG_SETS.putIfAbsent(tagSet, tagSet);
+            hashtags = shared != null ? shared : tagSet;
+        }
+
+        photoId = photo.getPhotoId();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        writeString(out, photo.getFilename());
+        writeString(out, photo.getDescription());
+        writeName(out, photo.getStoragePath(), photo.getFilename());
+        writeName(out, photo.getThumbnailPath(), photo.getFilename());
+        strings = out.toByteArray();
+    }
+
+    Photo toPhoto() {
+        Photo photo = new Photo();
+        photo.setUploadDateTime(PhotoTable.fromMillis(uploadMillis));
+        photo.setFileSize(fileSize);
+        photo.setAuthorId(PhotoSymbols.AUTHOR_IDS.valueOf(authorId));
+        photo.setAuthorName(PhotoSymbols.AUTHOR_NAMES.valueOf(authorName));
+        photo.setFormat(PhotoSymbols.FORMATS.valueOf(format));
+        photo.setWidth(width);
+        photo.setHeight(height);
+        List<String> tags = new ArrayList<>(hashtags.ids.length);
+        for (int tag : hashtags.ids) {
+            tags.add(PhotoSymbols.HASHTAGS.valueOf(tag));
+        }
+        photo.setHashtags(tags);
+        photo.setPhotoId(photoId);
+
+        int[] pos = {0};
+        photo.setFilename(readString(pos));
+        photo.setDescription(readString(pos));
+        photo.setStoragePath(readName(pos, storageDir, photo.getFilename()));
+        photo.setThumbnailPath(readName(pos, thumbnailDir, photo.getFilename()));
+        return photo;
+    }
+
+    private static String directoryOf(String path) {
+        if (path == null) return null;
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? null : path.substring(0, slash + 1);
+    }
+
+    private static void writeName(ByteArrayOutputStream out, String path, String filename) {
+        if (path == null) {
+            writeVarint(out, NULL_STRING);
+            return;
+        }
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        if (name.equals(filename)) {
+            writeVarint(out, SAME_AS_FILENAME);
+        } else {
+            writeString(out, name);
+        }
+    }
+
+    private String readName(int[] pos, int directory, String filename) {
+        int tag = readVarint(pos);
+        if (tag == NULL_STRING) return null;
+        String name = tag == SAME_AS_FILENAME ? filename : decode(pos, tag - 2);
+        String dir = PhotoSymbols.DIRECTORIES.valueOf(directory);
+        return dir == null ? name : dir + name;
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarint(out, NULL_STRING);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length + 2);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private String readString(int[] pos) {
+        int tag = readVarint(pos);
+        return tag == NULL_STRING ? null : decode(pos, tag - 2);
+    }
+
+    private String decode(int[] pos, int length) {
+        String value = new String(strings, pos[0], length, StandardCharsets.UTF_8);
+        pos[0] += length;
+        return value;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private int readVarint(int[] pos) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = strings[pos[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
+
+/**
+ * Immutable hashtag id array, interned by CompactPhoto.
+ */
+final class TagSet {
+    static final TagSet NONE = new TagSet(new int[0]);
+
+    final int[] ids;
+    private final int hash;
+
+    TagSet(int[] ids) {
+        this.ids = ids;
+        this.hash = Arrays.hashCode(ids);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof TagSet && Arrays.equals(ids, ((TagSet) o).ids);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
+
+/**
+ * Open-addressing map from photo id to table row that stores only the rows:
+ * a slot's id is read back from the table, so no id is held twice and there
+ * is no entry object per photo. One writer at a time; readers run
+ * optimistically and retry under a read lock if a write overlapped them.
+ */
+class PhotoIdMap {
+    // Slots hold row + 1
+    private static final int EMPTY = 0;
+    private static final int DELETED = -1;
+
+    private final IntFunction<String> idOfRow;
+    private final StampedLock lock = new StampedLock();
+    private int[] slots = new int[16];
+    // Slots not EMPTY, deleted ones included
+    private int used;
+    private int count;
+
+    PhotoIdMap(IntFunction<String> idOfRow) {
+        this.idOfRow = idOfRow;
+    }
+
+    int get(String photoId) {
+        if (photoId == null) return -1;
+        long stamp = lock.tryOptimisticRead();
+        int slot = find(slots, photoId);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                slot = find(slots, photoId);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Adds an id that is not in the map; idOfRow must already return it for row.
+     */
+    void put(String photoId, int row) {
+        long stamp = lock.writeLock();
+        try {
+            if ((used + 1) * 2 > slots.length) {
+                rehash();
+            }
+            int mask = slots.length - 1;
+            int i = hash(photoId) & mask;
+            while (slots[i] > 0) {
+                i = (i + 1) & mask;
+            }
+            if (slots[i] == EMPTY) {
+                used++;
+            }
+            slots[i] = row + 1;
+            count++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void remove(String photoId) {
+        long stamp = lock.writeLock();
+        try {
+            int mask = slots.length - 1;
+            for (int i = hash(photoId) & mask; slots[i] != EMPTY; i = (i + 1) & mask) {
+                if (slots[i] > 0 && photoId.equals(idOfRow.apply(slots[i] - 1))) {
+                    slots[i] = DELETED;
+                    count--;
+                    return;
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Bounded by the table length, so an optimistic reader looking at a
+    // table being rewritten still terminates before validation discards it
+    private int find(int[] table, String photoId) {
+        int mask = table.length - 1;
+        int i = hash(photoId) & mask;
+        for (int probes = 0; probes < table.length; probes++) {
+            int slot = table[i];
+            if (slot == EMPTY) return -1;
+            if (slot > 0 && photoId.equals(idOfRow.apply(slot - 1))) return slot - 1;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    // Drops deleted slots and resizes to a load between 1/3 and 1/2
+    private void rehash() {
+        int capacity = 16;
+        while (capacity < (count + 1) * 3) {
+            capacity <<= 1;
+        }
+        int[] table = new int[capacity];
+        int mask = capacity - 1;
+        for (int slot : slots) {
+            if (slot > 0) {
+                int i = hash(idOfRow.apply(slot - 1)) & mask;
+                while (table[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = slot;
+            }
+        }
+        slots = table;
+        used = count;
+    }
+
+    private static int hash(String photoId) {
+        int h = photoId.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
+
+/**
+ * Hands out table rows, reusing freed ones first so the rows stay dense.
+ * Used by the table's writer; limit() may be read concurrently.
+ */
+class RowAllocator {
+    private int[] free = new int[16];
+    private int freeCount;
+    private volatile int limit;
+
+    int allocate() {
+        if (freeCount > 0) {
+            return free[--freeCount];
+        }
+        int row = limit;
+        limit = row + 1;
+        return row;
+    }
+
+    void release(int row) {
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = row;
+    }
+
+    // The row allocate() will hand out if no row is free
+    int next() {
+        return freeCount > 0 ? free[freeCount - 1] : limit;
+    }
+
+    int limit() {
+        return limit;
+    }
+}
+
+/**
+ * Off-heap backend: fixed-width fields live in memory-mapped column files
+ * (upload time, size, width, height, author, author name and format
+ * symbols) and the variable-length part - hashtag symbols and strings - in
+ * a mapped heap, so the GC sees the photo ids and nothing else per photo.
+ * Column reads such as fileSize(row) go straight to the mapping without a
+ * lock; get() and hashtag probes, which follow a row's heap reference, take
+ * a read lock so a concurrent rewrite or compaction cannot move it.
+ *
+ * An update rewrites the row in place, reusing its heap entry when the new
+ * one fits; a deleted row is reused by the next insert. Heap space left
+ * behind by moved and deleted entries is reclaimed by copying the live
+ * entries into a fresh heap file once it outweighs them. The files are
+ * scratch space rebuilt from the write-ahead log on every start, so they
+ * are truncated when the table is opened.
+ * Enable with -Dphotomanager.photo.store=mapped.
+ */
+class MappedPhotoTable implements PhotoTable {
+    private static final int INITIAL_ROWS = 1 << 16;
+    // Heap garbage tolerated before compaction, if it also exceeds the live bytes
+    private static final long COMPACT_THRESHOLD = 16L << 20;
+
+    private final File dir;
+    private final StampedLock lock = new StampedLock();
+    private final PhotoIdMap rows = new PhotoIdMap(this::photoId);
+    private final RowAllocator allocator = new RowAllocator();
+    // Photo id per row, null for a free row
+    private volatile String[] ids = new String[INITIAL_ROWS];
+    private final MappedColumn uploadMillis;
+    private final MappedColumn fileSizes;
+    private final MappedColumn widths;
+    private final MappedColumn heights;
+    private final MappedColumn authorIds;
+    private final MappedColumn authorNames;
+    private final MappedColumn formatIds;
+    private final MappedColumn heapRefs;
+    private MappedStringHeap heap;
+    private int heapGeneration;
+    private volatile int size;
+
+    public MappedPhotoTable(File dir) throws IOException {
+        this.dir = dir;
+        dir.mkdirs();
+        uploadMillis = new MappedColumn(new File(dir, "upload.col"), 8, INITIAL_ROWS);
+        fileSizes = new MappedColumn(new File(dir, "size.col"), 8, INITIAL_ROWS);
+        widths = new MappedColumn(new File(dir, "width.col"), 4, INITIAL_ROWS);
+        heights = new MappedColumn(new File(dir, "height.col"), 4, INITIAL_ROWS);
+        authorIds = new MappedColumn(new File(dir, "author.col"), 4, INITIAL_ROWS);
+        authorNames = new MappedColumn(new File(dir, "authorname.col"), 4, INITIAL_ROWS);
+        formatIds = new MappedColumn(new File(dir, "format.col"), 4, INITIAL_ROWS);
+        heapRefs = new MappedColumn(new File(dir, "heapref.col"), 8, INITIAL_ROWS);
+        new File(dir, heapFileName(1)).delete();
+        heap = new MappedStringHeap(new File(dir, heapFileName(0)));
+    }
+
+    @Override
+    public int rowOf(String photoId) {
+        return rows.get(photoId);
+    }
+
+    @Override
+    public int put(Photo photo) {
+        int row;
+        long stamp = lock.writeLock();
+        try {
+            byte[] entry = encode(photo);
+            row = rows.get(photo.getPhotoId());
+            boolean added = row < 0;
+            if (added) {
+                ensureCapacity(allocator.next() + 1);
+                row = allocator.allocate();
+            }
+            uploadMillis.putLong(row, PhotoTable.toMillis(photo.getUploadDateTime()));
+            fileSizes.putLong(row, photo.getFileSize());
+            widths.putInt(row, photo.getWidth());
+            heights.putInt(row, photo.getHeight());
+            authorIds.putInt(row, PhotoSymbols.AUTHOR_IDS.idOf(photo.getAuthorId()));
+            authorNames.putInt(row, PhotoSymbols.authorNameId(photo.getAuthorName()));
+            formatIds.putInt(row, PhotoSymbols.FORMATS.idOf(photo.getFormat()));
+            heapRefs.putLong(row, heap.write(added ? -1 : heapRefs.getLong(row), entry));
+            if (added) {
+                ids[row] = photo.getPhotoId();
+                rows.put(photo.getPhotoId(), row);
+                size++;
+            }
+            compactIfWasteful();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return row;
+    }
+
+    @Override
+    public void remove(int row) {
+        long stamp = lock.writeLock();
+        try {
+            String photoId = photoId(row);
+            if (photoId == null) return;
+            rows.remove(photoId);
+            ids[row] = null;
+            heap.free(heapRefs.getLong(row));
+            heapRefs.putLong(row, -1);
+            allocator.release(row);
+            size--;
+            compactIfWasteful();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public Photo get(int row) {
+        long stamp = lock.readLock();
+        try {
+            String photoId = photoId(row);
+            return photoId == null ? null : materialize(row, photoId);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean isLive(int row) {
+        return photoId(row) != null;
+    }
+
+    @Override
+    public int rowLimit() {
+        return allocator.limit();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long totalFileSize() {
+        long total = 0;
+        int limit = rowLimit();
+        for (int row = 0; row < limit; row++) {
+            if (isLive(row)) {
+                total += fileSizes.getLong(row);
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public long uploadMillis(int row) {
+        return uploadMillis.getLong(row);
+    }
+
+    @Override
+    public long fileSize(int row) {
+        return fileSizes.getLong(row);
+    }
+
+    @Override
+    public int authorId(int row) {
+        return authorIds.getInt(row);
+    }
+
+    @Override
+    public int authorName(int row) {
+        return authorNames.getInt(row);
+    }
+
+    @Override
+    public int[] hashtags(int row) {
+        long stamp = lock.readLock();
+        try {
+            if (!isLive(row)) return TagSet.NONE.ids;
+            long ref = heapRefs.getLong(row);
+            int[] tags = new int[heap.getInt(ref, 0)];
+            for (int i = 0; i < tags.length; i++) {
+                tags[i] = heap.getInt(ref, 4 + 4 * i);
+            }
+            return tags;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean hasAnyHashtag(int row, int[] tags) {
+        long stamp = lock.readLock();
+        try {
+            if (!isLive(row)) return false;
+            long ref = heapRefs.getLong(row);
+            int count = heap.getInt(ref, 0);
+            for (int i = 0; i < count; i++) {
+                int tag = heap.getInt(ref, 4 + 4 * i);
+                for (int wanted : tags) {
+                    if (tag == wanted) return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private String photoId(int row) {
+        String[] current = ids;
+        return row >= 0 && row < current.length ? current[row] : null;
+    }
+
+    private void ensureCapacity(int rowCount) throws IOException {
+        for (MappedColumn column : new MappedColumn[] {uploadMillis, fileSizes, widths, heights,
+                authorIds, authorNames, formatIds, heapRefs}) {
+            column.ensureCapacity(rowCount);
+        }
+        if (rowCount > ids.length) {
+            ids = Arrays.copyOf(ids, Math.max(rowCount, ids.length * 2));
+        }
+    }
+
+    // Copies the live entries into the other heap file and drops this one.
+    // Runs under the write lock, so no reader is inside the old heap.
+    private void compactIfWasteful() throws IOException {
+        if (heap.garbage() < COMPACT_THRESHOLD || heap.garbage() < heap.liveBytes()) {
+            return;
+        }
+        int generation = heapGeneration ^ 1;
+        File file = new File(dir, heapFileName(generation));
+        MappedStringHeap compacted = new MappedStringHeap(file);
+        int limit = rowLimit();
+        for (int row = 0; row < limit; row++) {
+            if (isLive(row)) {
+                heapRefs.putLong(row, compacted.write(-1, heap.read(heapRefs.getLong(row))));
+            }
+        }
+        heap.close();
+        new File(dir, heapFileName(heapGeneration)).delete();
+        heap = compacted;
+        heapGeneration = generation;
+        Logger.getInstance().log("MappedPhotoTable", "Compacted string heap to {} bytes", heap.liveBytes());
+    }
+
+    private static String heapFileName(int generation) {
+        return "strings-" + generation + ".heap";
+    }
+
+    private Photo materialize(int row, String photoId) {
+        Photo photo = new Photo();
+        photo.setPhotoId(photoId);
+        photo.setUploadDateTime(PhotoTable.fromMillis(uploadMillis.getLong(row)));
+        photo.setFileSize(fileSizes.getLong(row));
+        photo.setWidth(widths.getInt(row));
+        photo.setHeight(heights.getInt(row));
+        photo.setAuthorId(PhotoSymbols.AUTHOR_IDS.valueOf(authorIds.getInt(row)));
+        photo.setAuthorName(PhotoSymbols.AUTHOR_NAMES.valueOf(authorNames.getInt(row)));
+        photo.setFormat(PhotoSymbols.FORMATS.valueOf(formatIds.getInt(row)));
+        decode(heap.read(heapRefs.getLong(row)), photo);
+        return photo;
+    }
+
+    // Heap entry: hashtag count and symbols first, so probes read them in
+    // place, then the strings
+    private static byte[] encode(Photo photo) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        List<String> hashtags = photo.getHashtags() != null ? photo.getHashtags() : Collections.<String>emptyList();
+        out.writeInt(hashtags.size());
+        for (String tag : hashtags) {
+            out.writeInt(PhotoSymbols.HASHTAGS.idOf(tag));
+        }
+        RecordIO.writeString(out, photo.getFilename());
+        RecordIO.writeString(out, photo.getDescription());
+        RecordIO.writeString(out, photo.getStoragePath());
+        RecordIO.writeString(out, photo.getThumbnailPath());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void decode(byte[] data, Photo photo) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            int tagCount = in.readInt();
+            List<String> hashtags = new ArrayList<>(tagCount);
+            for (int i = 0; i < tagCount; i++) {
+                hashtags.add(PhotoSymbols.HASHTAGS.valueOf(in.readInt()));
+            }
+            photo.setHashtags(hashtags);
+            photo.setFilename(RecordIO.readString(in));
+            photo.setDescription(RecordIO.readString(in));
+            photo.setStoragePath(RecordIO.readString(in));
+            photo.setThumbnailPath(RecordIO.readString(in));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+/**
+ * One fixed-width column in a memory-mapped file, remapped at double the
+ * size when it runs out of rows. Readers holding the old mapping still see
+ * the same file pages.
+ */
+class MappedColumn {
+    private final FileChannel channel;
+    private final int width;
+    private volatile MappedByteBuffer buffer;
+    private int capacity;
+
+    MappedColumn(File file, int width, int rows) throws IOException {
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        this.channel.truncate(0);
+        this.width = width;
+        map(rows);
+    }
+
+    void ensureCapacity(int rows) throws IOException {
+        if (rows > capacity) {
+            map(Math.max(rows, capacity * 2));
+        }
+    }
+
+    private void map(int rows) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) rows * width);
+        capacity = rows;
+    }
+
+    long getLong(int row) { return buffer.getLong(row * width); }
+    void putLong(int row, long value) { buffer.putLong(row * width, value); }
+    int getInt(int row) { return buffer.getInt(row * width); }
+    void putInt(int row, int value) { buffer.putInt(row * width, value); }
+}
+
+/**
+ * Heap of byte strings in a memory-mapped file, mapped in fixed-size chunks
+ * so it can grow past 2 GB. An entry never spans chunks. Each entry records
+ * its capacity (length rounded up to 16 bytes) and length, so a rewrite
+ * that fits stays in place; other rewrites and frees leave garbage, which
+ * the owner reclaims by copying the live entries into a new heap.
+ */
+class MappedStringHeap {
+    private static final int CHUNK_SIZE = 64 << 20;
+    private static final int HEADER = 8;
+
+    private final FileChannel channel;
+    private final List<MappedByteBuffer> chunks = new CopyOnWriteArrayList<>();
+    private long position;
+    // Bytes below position not holding live data: freed entries, unused
+    // capacity and chunk tails
+    private long garbage;
+
+    MappedStringHeap(File file) throws IOException {
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        this.channel.truncate(0);
+    }
+
+    /**
+     * Stores data at ref if it fits there, else frees ref (if >= 0) and
+     * appends; returns the entry's reference.
+     */
+    long write(long ref, byte[] data) throws IOException {
+        if (ref >= 0 && data.length <= chunk(ref).getInt(offset(ref))) {
+            garbage += chunk(ref).getInt(offset(ref) + 4) - data.length;
+            put(ref, data);
+            return ref;
+        }
+        free(ref);
+        int capacity = (data.length + 15) & ~15;
+        int needed = HEADER + capacity;
+        if (needed > CHUNK_SIZE) {
+            throw new IOException("Entry too large for string heap: " + data.length + " bytes");
+        }
+        int chunk = (int) (position / CHUNK_SIZE);
+        int offset = (int) (position % CHUNK_SIZE);
+        if (offset + needed > CHUNK_SIZE) {
+            garbage += CHUNK_SIZE - offset;
+            chunk++;
+            offset = 0;
+        }
+        while (chunks.size() <= chunk) {
+            chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) chunks.size() * CHUNK_SIZE, CHUNK_SIZE));
+        }
+        long entry = (long) chunk * CHUNK_SIZE + offset;
+        chunks.get(chunk).putInt(offset, capacity);
+        garbage += capacity - data.length;
+        put(entry, data);
+        position = entry + needed;
+        return entry;
+    }
+
+    void free(long ref) {
+        if (ref >= 0) {
+            garbage += HEADER + chunk(ref).getInt(offset(ref) + 4);
+        }
+    }
+
+    byte[] read(long ref) {
+        ByteBuffer view = chunk(ref).duplicate();
+        view.position(offset(ref) + 4);
+        byte[] data = new byte[view.getInt()];
+        view.get(data);
+        return data;
+    }
+
+    /**
+     * The int at offset within the entry's data, read in place.
+     */
+    int getInt(long ref, int offset) {
+        return chunk(ref).getInt(offset(ref) + HEADER + offset);
+    }
+
+    long garbage() {
+        return garbage;
+    }
+
+    long liveBytes() {
+        return position - garbage;
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    private void put(long ref, byte[] data) {
+        ByteBuffer view = chunk(ref).duplicate();
+        view.position(offset(ref) + 4);
+        view.putInt(data.length);
+        view.put(data);
+    }
+
+    private MappedByteBuffer chunk(long ref) {
+        return chunks.get((int) (ref / CHUNK_SIZE));
+    }
+
+    private static int offset(long ref) {
+        return (int) (ref % CHUNK_SIZE);
+    }
+}
+
+/**
+ * Dictionary of repeated strings (author ids, formats, ...) to dense int
+ * ids. Null maps to -1. Lookups are lock-free; new symbols are added
+ * under a lock.
+ */
+class SymbolTable {
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[16];
+    private int count;
+
+    public int idOf(String value) {
+        if (value == null) return -1;
+        Integer id = ids.get(value);
+        return id != null ? id : add(value);
+    }
+
+    /**
+     * The id of value, or -1 if it has never been added.
+     */
+    public int find(String value) {
+        Integer id = value == null ? null : ids.get(value);
+        return id != null ? id : -1;
+    }
+
+    public String valueOf(int id) {
+        return id < 0 ? null : values[id];
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    private synchronized int add(String value) {
+        Integer id = ids.get(value);
+        if (id != null) return id;
+        if (count == values.length) {
+            values = Arrays.copyOf(values, count * 2);
+        }
+        String[] current = values;
+        current[count] = value;
+        values = current;
+        ids.put(value, count);
+        return count++;
+    }
+}
@@ -1,6 +1,8 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
@@ -177,6 +179,8 @@ class SearchDialog extends JDialog {
  * Photo Details Dialog
  */
 class PhotoDetailsDialog extends JDialog {
+    private static final int PREVIEW_WIDTH = 580;
+    private static final int PREVIEW_HEIGHT = 290;
     private Photo photo;
     private User currentUser;
     private PhotoManagementFacade facade;
@@ -204,6 +208,18 @@ class PhotoDetailsDialog extends JDialog {
         imagePanel.add(imageLabel);
         add(imagePanel, BorderLayout.CENTER);
         
+        // Replace the placeholder once the medium derivative is ready
+        facade.requestDerivative(photo, DerivativeSize.MEDIUM)
+            .thenApplyAsync(this::loadPreview)
+            .thenAccept(preview -> {
+                if (preview != null) {
+                    SwingUtilities.invokeLater(() -> {
+                        imageLabel.setText(null);
+                        imageLabel.setIcon(new ImageIcon(preview));
+                    });
+                }
+            });
+        
         // Info panel
         JPanel infoPanel = new JPanel(new GridLayout(0, 2, 5, 5));
         infoPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
@@ -220,6 +236,11 @@ class PhotoDetailsDialog extends JDialog {
         infoPanel.add(new JLabel("Size:"));
         infoPanel.add(new JLabel(formatFileSize(photo.getFileSize())));
         
+        if (photo.getWidth() > 0) {
+            infoPanel.add(new JLabel("Dimensions:"));
+            infoPanel.add(new JLabel(photo.getWidth() + " x " + photo.getHeight() + " " + photo.getFormat()));
+        }
+        
         infoPanel.add(new JLabel("Description:"));
         infoPanel.add(new JLabel(photo.getDescription()));
         
@@ -258,9 +279,34 @@ class PhotoDetailsDialog extends JDialog {
                currentUser.getUserId().equals(photo.getAuthorId());
     }
     
+    private BufferedImage loadPreview(File file) {
+        try {
+            BufferedImage image = file == null ? null : ImageReaders.decode(file);
+            if (image == null || (image.getWidth() <= PREVIEW_WIDTH && image.getHeight() <= PREVIEW_HEIGHT)) {
+                return image;
+            }
+            return ImageOperations.resize(image, PREVIEW_WIDTH, PREVIEW_HEIGHT);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+    
     private void handleDownload() {
-        JOptionPane.showMessageDialog(this, "Photo downloaded to: " + photo.getStoragePath());
-        Logger.getInstance().log(currentUser.getUserId(), "Downloaded photo: " + photo.getPhotoId());
+        Object[] options = {"Original", DerivativeSize.LARGE, DerivativeSize.MEDIUM, DerivativeSize.SMALL};
+        Object choice = JOptionPane.showInputDialog(this, "Size:", "Download",
+            JOptionPane.QUESTION_MESSAGE, null, options, options[0]);
+        if (choice == null) {
+            return;
+        }
+        // A derivative may have to be generated first; report once it is ready
+        facade.download(currentUser, photo, choice instanceof DerivativeSize ? (DerivativeSize) choice : null)
+            .thenAcceptAsync(file -> {
+                if (file != null) {
+                    JOptionPane.showMessageDialog(this, "Photo downloaded to: " + file.getPath());
+                } else {
+                    JOptionPane.showMessageDialog(this, "Photo is not available for download", "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }, SwingUtilities::invokeLater);
     }
     
     private void handleEdit() {
@@ -0,0 +1,32 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+/**
+ * Immutable list snapshot tagged with the repository version it was taken
+ * at. Readers share it until a write bumps the version.
+ */
+class Snapshot<T> {
+    private final long version;
+    private final List<T> items;
+
+    private Snapshot(long version, List<T> items) {
+        this.version = version;
+        this.items = items;
+    }
+
+    static <T> List<T> read(AtomicReference<Snapshot<T>> ref, LongSupplier version,
+                            Collection<T> source) {
+        long current = version.getAsLong();
+        Snapshot<T> cached = ref.get();
+        if (cached != null && cached.version == current) {
+            return cached.items;
+        }
+        List<T> items = Collections.unmodifiableList(new ArrayList<>(source));
+        // Only publish if no write happened while copying
+        if (version.getAsLong() == current) {
+            ref.set(new Snapshot<>(current, items));
+        }
+        return items;
+    }
+}
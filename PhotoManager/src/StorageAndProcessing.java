@@ -1,18 +1,40 @@
 import java.io.*;
+import java.util.*;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
 
 /**
  * Strategy Pattern for Storage
  */
 interface StorageStrategy {
     String upload(File file, String userId);
+    /**
+     * Stores the user's file of that name by letting encoder write it
+     * straight into the destination, and returns its path.
+     */
+    String upload(String filename, String userId, ImageEncoder encoder);
+    /**
+     * Stores a thumbnail for the user's file of that name and returns its path.
+     */
+    String uploadThumbnail(String filename, String userId, ImageEncoder encoder);
     File download(String path);
     void delete(String path);
+    /**
+     * Paths of the files stored under directory (a name prefix such as
+     * "derivatives/") for every user.
+     */
+    List<String> list(String directory);
 }
 
 class LocalStorageStrategy implements StorageStrategy {
     private static final String STORAGE_PATH = "./photos/";
+    private static final String THUMBNAIL_DIR = "thumbnails";
     
     @Override
     public String upload(File file, String userId) {
@@ -21,7 +43,7 @@ class LocalStorageStrategy implements StorageStrategy {
             userDir.mkdirs();
             File destination = new File(userDir, file.getName());
             copyFile(file, destination);
-            Logger.getInstance().log("LocalStorage", "File uploaded: " + destination.getPath());
+            Logger.getInstance().log("LocalStorage", "File uploaded: {}", destination.getPath());
             return destination.getPath();
         } catch (Exception e) {
             e.printStackTrace();
@@ -29,6 +51,26 @@ class LocalStorageStrategy implements StorageStrategy {
         }
     }
     
+    @Override
+    public String upload(String filename, String userId, ImageEncoder encoder) {
+        File destination = new File(STORAGE_PATH + userId, filename);
+        if (!write(destination, encoder)) {
+            return null;
+        }
+        Logger.getInstance().log("LocalStorage", "File encoded: {}", destination.getPath());
+        return destination.getPath();
+    }
+    
+    /**
+     * Writes the thumbnail under the original's name in the user's
+     * thumbnails directory.
+     */
+    @Override
+    public String uploadThumbnail(String filename, String userId, ImageEncoder encoder) {
+        File destination = new File(new File(STORAGE_PATH + userId, THUMBNAIL_DIR), filename);
+        return write(destination, encoder) ? destination.getPath() : null;
+    }
+    
     @Override
     public File download(String path) {
         return new File(path);
@@ -37,7 +79,47 @@ class LocalStorageStrategy implements StorageStrategy {
     @Override
     public void delete(String path) {
         new File(path).delete();
-        Logger.getInstance().log("LocalStorage", "File deleted: " + path);
+        Logger.getInstance().log("LocalStorage", "File deleted: {}", path);
+    }
+    
+    @Override
+    public List<String> list(String directory) {
+        List<String> paths = new ArrayList<>();
+        File[] userDirs = new File(STORAGE_PATH).listFiles(File::isDirectory);
+        for (File userDir : userDirs == null ? new File[0] : userDirs) {
+            File[] files = new File(userDir, directory).listFiles(File::isFile);
+            for (File file : files == null ? new File[0] : files) {
+                paths.add(file.getPath());
+            }
+        }
+        return paths;
+    }
+    
+    // Every instance stores under the same root
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof LocalStorageStrategy;
+    }
+    
+    @Override
+    public int hashCode() {
+        return STORAGE_PATH.hashCode();
+    }
+    
+    private boolean write(File destination, ImageEncoder encoder) {
+        destination.getParentFile().mkdirs();
+        try (RandomAccessFile file = new RandomAccessFile(destination, "rw")) {
+            // The encoder writes through to the file, no temp file or byte[] copy
+            file.setLength(0);
+            ImageOutputStream out = new FileImageOutputStream(file);
+            encoder.encode(out);
+            out.flush();
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            destination.delete();
+            return false;
+        }
     }
     
     private void copyFile(File source, File dest) throws IOException {
@@ -57,7 +139,23 @@ class CloudStorageStrategy implements StorageStrategy {
     public String upload(File file, String userId) {
         // Simulate cloud upload (e.g., AWS S3)
         String cloudPath = "s3://bucket/" + userId + "/" + file.getName();
-        Logger.getInstance().log("CloudStorage", "File uploaded to cloud: " + cloudPath);
+        Logger.getInstance().log("CloudStorage", "File uploaded to cloud: {}", cloudPath);
+        return cloudPath;
+    }
+    
+    @Override
+    public String upload(String filename, String userId, ImageEncoder encoder) {
+        // Simulate a streaming (multipart) cloud upload
+        String cloudPath = "s3://bucket/" + userId + "/" + filename;
+        Logger.getInstance().log("CloudStorage", "File encoded to cloud: {}", cloudPath);
+        return cloudPath;
+    }
+    
+    @Override
+    public String uploadThumbnail(String filename, String userId, ImageEncoder encoder) {
+        // Simulate cloud upload next to the original
+        String cloudPath = "s3://bucket/" + userId + "/thumbnails/" + filename;
+        Logger.getInstance().log("CloudStorage", "Thumbnail uploaded to cloud: {}", cloudPath);
         return cloudPath;
     }
     
@@ -70,7 +168,82 @@ class CloudStorageStrategy implements StorageStrategy {
     
     @Override
     public void delete(String path) {
-        Logger.getInstance().log("CloudStorage", "File deleted from cloud: " + path);
+        Logger.getInstance().log("CloudStorage", "File deleted from cloud: {}", path);
+    }
+    
+    @Override
+    public List<String> list(String directory) {
+        // Simulate listing a bucket prefix
+        Logger.getInstance().log("CloudStorage", "Listed cloud prefix: {}", directory);
+        return new ArrayList<>();
+    }
+}
+
+/**
+ * Writes an encoded image to a storage destination.
+ */
+interface ImageEncoder {
+    void encode(ImageOutputStream out) throws IOException;
+}
+
+/**
+ * ImageEncoders for the ImageIO writers. JPEG quality and progressive mode
+ * default to -Dphotomanager.image.jpegQuality (0.0-1.0, default 0.9) and
+ * -Dphotomanager.image.progressive.
+ */
+final class ImageEncoders {
+    static final float JPEG_QUALITY = Float.parseFloat(System.getProperty("photomanager.image.jpegQuality", "0.9"));
+    static final boolean PROGRESSIVE = Boolean.getBoolean("photomanager.image.progressive");
+    
+    private ImageEncoders() {
+    }
+    
+    static boolean canWrite(String format) {
+        return format != null && ImageIO.getImageWritersByFormatName(format).hasNext();
+    }
+    
+    /**
+     * The format to encode filename's image in: its extension if ImageIO can
+     * write that, otherwise PNG.
+     */
+    static String formatOf(String filename) {
+        int dot = filename.lastIndexOf('.');
+        String format = dot < 0 ? null : filename.substring(dot + 1);
+        return canWrite(format) ? format : "PNG";
+    }
+    
+    static ImageEncoder of(BufferedImage image, String format) {
+        return of(image, format, JPEG_QUALITY, PROGRESSIVE);
+    }
+    
+    static ImageEncoder of(BufferedImage image, String format, float jpegQuality, boolean progressive) {
+        return out -> {
+            ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+            try {
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                BufferedImage source = image;
+                if (isJpeg(format)) {
+                    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                    param.setCompressionQuality(jpegQuality);
+                    param.setProgressiveMode(progressive ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+                    // JPEG has no alpha channel
+                    if (image.getColorModel().hasAlpha()) {
+                        source = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+                        Graphics2D g = source.createGraphics();
+                        g.drawImage(image, 0, 0, null);
+                        g.dispose();
+                    }
+                }
+                writer.setOutput(out);
+                writer.write(null, new IIOImage(source, null, null), param);
+            } finally {
+                writer.dispose();
+            }
+        };
+    }
+    
+    static boolean isJpeg(String format) {
+        return format.equalsIgnoreCase("jpeg") || format.equalsIgnoreCase("jpg");
     }
 }
 
@@ -96,7 +269,33 @@ abstract class ImageProcessorDecorator implements ImageProcessor {
     }
 }
 
-class ResizeDecorator extends ImageProcessorDecorator {
+/**
+ * A per-pixel colour operation. Decorators that implement it can be fused
+ * by ImageProcessingPipeline into a single pass over the pixels.
+ */
+interface PointOperation {
+    /**
+     * Transforms packed ARGB pixels [from, to) of pixels in place.
+     */
+    void applyTo(int[] pixels, int from, int to);
+}
+
+/**
+ * An operation that needs neighbouring pixels. It produces its output tile
+ * by tile and runs after (if not null) on each finished tile, so following
+ * point operations see the pixels while they are still in cache.
+ */
+interface NeighborhoodOperation {
+    BufferedImage apply(BufferedImage image, PointOperation after);
+
+    /**
+     * How many rows above and below an output row it reads, or -1 if its
+     * rows do not map to input rows (a resize).
+     */
+    int reach();
+}
+
+class ResizeDecorator extends ImageProcessorDecorator implements NeighborhoodOperation {
     private int width, height;
     
     public ResizeDecorator(ImageProcessor wrapped, int width, int height) {
@@ -105,39 +304,246 @@ class ResizeDecorator extends ImageProcessorDecorator {
         this.height = height;
     }
     
+    /**
+     * Fits the image within width x height, keeping its aspect ratio.
+     */
     @Override
     public BufferedImage process(BufferedImage image) {
         BufferedImage processed = wrapped.process(image);
-        // Simplified resize
-        Logger.getInstance().log("ImageProcessor", "Image resized to " + width + "x" + height);
-        return processed;
+        if (processed == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        BufferedImage resized = ImageOperations.resize(processed, width, height);
+        String throughput = ImageOperations.megapixelsPerSecond(processed.getWidth(), processed.getHeight(),
+                System.nanoTime() - start);
+        Logger.getInstance().log("ImageProcessor", "Image resized to {}x{}", resized.getWidth(), resized.getHeight());
+        Logger.getInstance().log("ImageProcessor", "Resize ran at {} MP/s", throughput);
+        return resized;
+    }
+    
+    @Override
+    public BufferedImage apply(BufferedImage image, PointOperation after) {
+        return ImageOperations.resize(image, width, height, after);
+    }
+
+    @Override
+    public int reach() {
+        return -1;
+    }
+
+    int maxWidth() {
+        return width;
+    }
+
+    int maxHeight() {
+        return height;
     }
 }
 
-class SepiaDecorator extends ImageProcessorDecorator {
+class SepiaDecorator extends ImageProcessorDecorator implements PointOperation {
     public SepiaDecorator(ImageProcessor wrapped) {
         super(wrapped);
     }
     
+    /**
+     * Tones the image in place where its raster allows it.
+     */
+    @Override
+    public BufferedImage process(BufferedImage image) {
+        BufferedImage processed = wrapped.process(image);
+        if (processed == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        BufferedImage toned = ImageOperations.sepia(processed);
+        String throughput = ImageOperations.megapixelsPerSecond(toned.getWidth(), toned.getHeight(),
+                System.nanoTime() - start);
+        Logger.getInstance().log("ImageProcessor", "Sepia filter applied at {} MP/s", throughput);
+        return toned;
+    }
+    
+    @Override
+    public void applyTo(int[] pixels, int from, int to) {
+        ImageOperations.sepia(pixels, from, to);
+    }
+}
+
+class BrightnessDecorator extends ImageProcessorDecorator implements PointOperation {
+    private int percent;
+    private int[] table = new int[256];
+    
+    /**
+     * Scales every colour channel by percent (100 leaves the image unchanged).
+     */
+    public BrightnessDecorator(ImageProcessor wrapped, int percent) {
+        super(wrapped);
+        this.percent = percent;
+        for (int i = 0; i < 256; i++) {
+            table[i] = Math.min(255, (i * percent + 50) / 100);
+        }
+    }
+    
     @Override
     public BufferedImage process(BufferedImage image) {
         BufferedImage processed = wrapped.process(image);
-        // Apply sepia filter logic
-        Logger.getInstance().log("ImageProcessor", "Sepia filter applied");
-        return processed;
+        if (processed == null) {
+            return null;
+        }
+        BufferedImage adjusted = ImageOperations.toIntImage(processed, this);
+        Logger.getInstance().log("ImageProcessor", "Brightness set to {}%", percent);
+        return adjusted;
+    }
+    
+    @Override
+    public void applyTo(int[] pixels, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int p = pixels[i];
+            pixels[i] = (p & 0xFF000000) | table[(p >> 16) & 0xFF] << 16 | table[(p >> 8) & 0xFF] << 8 | table[p & 0xFF];
+        }
     }
 }
 
-class BlurDecorator extends ImageProcessorDecorator {
+class BlurDecorator extends ImageProcessorDecorator implements NeighborhoodOperation {
+    static final int DEFAULT_RADIUS = 3;
+    // Three box passes are close to a Gaussian
+    private static final int PASSES = 3;
+    private int radius;
+    
     public BlurDecorator(ImageProcessor wrapped) {
+        this(wrapped, DEFAULT_RADIUS);
+    }
+    
+    public BlurDecorator(ImageProcessor wrapped, int radius) {
         super(wrapped);
+        this.radius = radius;
     }
     
     @Override
     public BufferedImage process(BufferedImage image) {
         BufferedImage processed = wrapped.process(image);
-        // Apply blur logic
-        Logger.getInstance().log("ImageProcessor", "Blur filter applied");
-        return processed;
+        if (processed == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        BufferedImage blurred = ImageOperations.boxBlur(processed, radius, PASSES);
+        String throughput = ImageOperations.megapixelsPerSecond(blurred.getWidth(), blurred.getHeight(),
+                System.nanoTime() - start);
+        Logger.getInstance().log("ImageProcessor", "Blur filter applied with radius {} at {} MP/s", radius, throughput);
+        return blurred;
+    }
+    
+    @Override
+    public BufferedImage apply(BufferedImage image, PointOperation after) {
+        return ImageOperations.boxBlur(image, radius, PASSES, after);
+    }
+
+    // Each pass widens the window by radius rows
+    @Override
+    public int reach() {
+        return PASSES * radius;
+    }
+}
+
+/**
+ * Runs a decorator chain without materialising an image per decorator.
+ * The chain is unwrapped from the outside in for as long as the decorators
+ * are point or neighbourhood operations; whatever lies below (the base
+ * processor, or a custom decorator with everything it wraps) runs through
+ * its own process(). The known stages then run inner to outer: each run of
+ * consecutive point operations is fused and applied to every tile produced
+ * by the preceding neighbourhood stage, or in one pass over the input when
+ * it comes first.
+ */
+class ImageProcessingPipeline {
+    // Pixels per chunk when several point operations share a pass
+    private static final int FUSED_CHUNK = 4096;
+
+    public static BufferedImage run(ImageProcessor processor, BufferedImage image) {
+        List<ImageProcessor> stages = new ArrayList<>();
+        ImageProcessor current = unwrap(processor, stages);
+        BufferedImage result = isIdentity(current) ? image : current.process(image);
+        if (result == null || stages.isEmpty()) {
+            return result;
+        }
+
+        long start = System.nanoTime();
+        int sourceWidth = result.getWidth();
+        int sourceHeight = result.getHeight();
+        result = runStages(stages, result);
+        String throughput = ImageOperations.megapixelsPerSecond(sourceWidth, sourceHeight,
+                System.nanoTime() - start);
+        Logger.getInstance().log("ImageProcessor", "Fused chain of {} stages ran at {} MP/s", stages.size(), throughput);
+        return result;
+    }
+
+    /**
+     * The stages of processor, inner first, or null if a custom decorator
+     * lies below them and the chain only runs through process().
+     */
+    static List<ImageProcessor> stagesOf(ImageProcessor processor) {
+        List<ImageProcessor> stages = new ArrayList<>();
+        return isIdentity(unwrap(processor, stages)) ? stages : null;
+    }
+
+    /**
+     * Runs stages (from stagesOf, or a run of them) over image.
+     */
+    static BufferedImage runStages(List<ImageProcessor> stages, BufferedImage image) {
+        BufferedImage result = image;
+        int i = 0;
+        List<PointOperation> leading = new ArrayList<>();
+        while (i < stages.size() && stages.get(i) instanceof PointOperation) {
+            leading.add((PointOperation) stages.get(i++));
+        }
+        if (!leading.isEmpty()) {
+            result = ImageOperations.toIntImage(result, fuse(leading));
+        }
+        while (i < stages.size()) {
+            NeighborhoodOperation stage = (NeighborhoodOperation) stages.get(i++);
+            List<PointOperation> following = new ArrayList<>();
+            while (i < stages.size() && stages.get(i) instanceof PointOperation) {
+                following.add((PointOperation) stages.get(i++));
+            }
+            result = stage.apply(result, fuse(following));
+        }
+        return result;
+    }
+
+    // Adds the known stages to stages, inner first, and returns what lies below them
+    private static ImageProcessor unwrap(ImageProcessor processor, List<ImageProcessor> stages) {
+        ImageProcessor current = processor;
+        while (current instanceof ImageProcessorDecorator
+                && (current instanceof PointOperation || current instanceof NeighborhoodOperation)) {
+            stages.add(current);
+            current = ((ImageProcessorDecorator) current).wrapped;
+        }
+        Collections.reverse(stages);
+        return current;
+    }
+
+    /**
+     * True if processor leaves every image unchanged (no decorators selected).
+     */
+    public static boolean isIdentity(ImageProcessor processor) {
+        return processor == null || processor.getClass() == BaseImageProcessor.class;
+    }
+
+    private static PointOperation fuse(List<PointOperation> operations) {
+        if (operations.isEmpty()) {
+            return null;
+        }
+        if (operations.size() == 1) {
+            return operations.get(0);
+        }
+        PointOperation[] ops = operations.toArray(new PointOperation[0]);
+        return (pixels, from, to) -> {
+            for (int start = from; start < to; start += FUSED_CHUNK) {
+                int end = Math.min(to, start + FUSED_CHUNK);
+                for (PointOperation op : ops) {
+                    op.applyTo(pixels, start, end);
+                }
+            }
+        };
     }
 }
@@ -70,6 +70,11 @@ public class User {
             return this;
         }
         
+        public UserBuilder registrationDate(LocalDateTime registrationDate) {
+            this.registrationDate = registrationDate;
+            return this;
+        }
+        
         public UserBuilder authProvider(AuthProvider provider) {
             this.authProvider = provider;
             return this;
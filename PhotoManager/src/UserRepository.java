@@ -1,14 +1,38 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Repository Pattern with Singleton - Data Layer
+ * Backed by a ConcurrentHashMap, so reads never block.
+ * Every save is journaled to a WriteAheadLog and replayed on startup.
  */
 public class UserRepository {
-    private static UserRepository instance;
     private Map<String, User> users;
+    // Bumped by every write; findAll() snapshots are reused while it is unchanged
+    private volatile long version;
+    private final AtomicReference<Snapshot<User>> snapshot = new AtomicReference<>();
+    private WriteAheadLog<User> journal;
+    // Unique indexes: lower-cased username / email -> user id
+    private Map<String, String> usernameIndex;
+    private Map<String, String> emailIndex;
 
     private UserRepository() {
-        users = new HashMap<>();
+        users = new ConcurrentHashMap<>();
+        usernameIndex = new ConcurrentHashMap<>();
+        emailIndex = new ConcurrentHashMap<>();
+
+        WriteAheadLog<User> wal = new WriteAheadLog<>("users", new UserRecordCodec(), this::findAll);
+        try {
+            wal.recover(this::applySave, this::applyDelete);
+            journal = wal;
+        } catch (IOException e) {
+            Logger.getInstance().log("UserRepository", "Journal unavailable, users will not persist: {}", e.getMessage());
+        }
+
         // Add default admin
         User admin = new User.UserBuilder()
                 .userId("ADMIN_001")
@@ -17,19 +41,93 @@ public class UserRepository {
                 .userType(UserType.ADMINISTRATOR)
                 .subscriptionPackage(SubscriptionPackage.GOLD)
                 .build();
-        users.put(admin.getUserId(), admin);
+        if (!users.containsKey(admin.getUserId())) {
+            applySave(admin);
+        }
+    }
+
+    // Initialization-on-demand holder: lazy and race-free without locking
+    private static class Holder {
+        static final UserRepository INSTANCE = new UserRepository();
     }
 
     public static UserRepository getInstance() {
-        if (instance == null) {
-            instance = new UserRepository();
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Saves the user, or returns false if another user already holds the
+     * username or email (compared case-insensitively).
+     */
+    public boolean save(User user) {
+        long seq = 0;
+        synchronized (this) {
+            if (!applySave(user)) {
+                Logger.getInstance().log("UserRepository", "User rejected, username or email taken: {}", user.getUsername());
+                return false;
+            }
+            if (journal != null) {
+                seq = journal.appendSave(user);
+            }
+        }
+        if (journal != null && !journal.awaitDurable(seq)) {
+            Logger.getInstance().log("UserRepository", "User not persisted: {}", user.getUserId());
+        }
+        Logger.getInstance().log("UserRepository", "User saved: {}", user.getUsername());
+        return true;
+    }
+
+    // In-memory part of save, also used when replaying the journal
+    private synchronized boolean applySave(User user) {
+        String userId = user.getUserId();
+        String username = normalize(user.getUsername());
+        String email = normalize(user.getEmail());
+        if (!reserve(usernameIndex, username, userId)) {
+            return false;
+        }
+        if (!reserve(emailIndex, email, userId)) {
+            User previous = users.get(userId);
+            if (previous == null || !username.equals(normalize(previous.getUsername()))) {
+                usernameIndex.remove(username, userId);
+            }
+            return false;
+        }
+
+        User previous = users.put(userId, user);
+        if (previous != null) {
+            String oldUsername = normalize(previous.getUsername());
+            if (oldUsername != null && !oldUsername.equals(username)) {
+                usernameIndex.remove(oldUsername, userId);
+            }
+            String oldEmail = normalize(previous.getEmail());
+            if (oldEmail != null && !oldEmail.equals(email)) {
+                emailIndex.remove(oldEmail, userId);
+            }
+        }
+        version++;
+        return true;
+    }
+
+    private synchronized void applyDelete(String userId) {
+        User previous = users.remove(userId);
+        if (previous != null) {
+            String username = normalize(previous.getUsername());
+            String email = normalize(previous.getEmail());
+            if (username != null) usernameIndex.remove(username, userId);
+            if (email != null) emailIndex.remove(email, userId);
+            version++;
         }
-        return instance;
     }
 
-    public void save(User user) {
-        users.put(user.getUserId(), user);
-        Logger.getInstance().log("UserRepository", "User saved: " + user.getUsername());
+    // Claims the key for the user; true if it was free or already theirs
+    private static boolean reserve(Map<String, String> index, String key, String userId) {
+        if (key == null) return true;
+        String owner = index.putIfAbsent(key, userId);
+        return owner == null || owner.equals(userId);
+    }
+
+    private static String normalize(String value) {
+        return value == null ? null : value.trim().toLowerCase(Locale.ROOT);
     }
 
     public User findById(String userId) {
@@ -37,10 +135,21 @@ public class UserRepository {
     }
 
     public User findByUsername(String username) {
-        return users.values().stream()
-                .filter(u -> u.getUsername().equals(username))
-                .findFirst()
-                .orElse(null);
+        String userId = username == null ? null : usernameIndex.get(normalize(username));
+        return userId == null ? null : users.get(userId);
+    }
+
+    public User findByEmail(String email) {
+        String userId = email == null ? null : emailIndex.get(normalize(email));
+        return userId == null ? null : users.get(userId);
+    }
+
+    public boolean isUsernameTaken(String username) {
+        return findByUsername(username) != null;
+    }
+
+    public boolean isEmailTaken(String email) {
+        return findByEmail(email) != null;
     }
 
     public User findByUsernameAndPassword(String username, String password) {
@@ -48,7 +157,44 @@ public class UserRepository {
         return findByUsername(username);
     }
 
+    /**
+     * Immutable snapshot of all users, shared by readers until the next save.
+     */
     public List<User> findAll() {
-        return new ArrayList<>(users.values());
+        return Snapshot.read(snapshot, () -> version, users.values());
+    }
+}
+
+/**
+ * Journal encoding of a User.
+ */
+class UserRecordCodec implements RecordCodec<User> {
+    @Override
+    public String keyOf(User user) {
+        return user.getUserId();
+    }
+
+    @Override
+    public void write(User user, DataOutputStream out) throws IOException {
+        RecordIO.writeString(out, user.getUserId());
+        RecordIO.writeString(out, user.getUsername());
+        RecordIO.writeString(out, user.getEmail());
+        RecordIO.writeEnum(out, user.getUserType());
+        RecordIO.writeEnum(out, user.getSubscriptionPackage());
+        RecordIO.writeDateTime(out, user.getRegistrationDate());
+        RecordIO.writeEnum(out, user.getAuthProvider());
+    }
+
+    @Override
+    public User read(DataInputStream in) throws IOException {
+        return new User.UserBuilder()
+                .userId(RecordIO.readString(in))
+                .username(RecordIO.readString(in))
+                .email(RecordIO.readString(in))
+                .userType(RecordIO.readEnum(in, UserType.class))
+                .subscriptionPackage(RecordIO.readEnum(in, SubscriptionPackage.class))
+                .registrationDate(RecordIO.readDateTime(in))
+                .authProvider(RecordIO.readEnum(in, AuthProvider.class))
+                .build();
     }
-}
\ No newline at end of file
+}
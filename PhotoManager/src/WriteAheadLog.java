@@ -0,0 +1,451 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Serializes one repository record type for the write-ahead log and snapshots.
+ */
+interface RecordCodec<T> {
+    String keyOf(T record);
+    void write(T record, DataOutputStream out) throws IOException;
+    T read(DataInputStream in) throws IOException;
+}
+
+/**
+ * Durable journal for a repository: an append-only, CRC-checked write-ahead
+ * log of save/delete operations plus periodic compacted snapshots.
+ *
+ * Appends are group-committed: a single flusher thread writes every queued
+ * record and forces the file once per batch, and callers wait on
+ * awaitDurable() only for the batch holding their record. Every
+ * snapshotEvery records the log rotates to a new segment, the repository
+ * state is written to a snapshot, and the segments it covers are deleted,
+ * so recovery reads one snapshot and a bounded log tail.
+ *
+ * A write error stops the journal for good: queued records are dropped and
+ * later appends are refused, so callers can fail the change they journal.
+ */
+class WriteAheadLog<T> {
+    static final String DATA_PATH = "./data/";
+    private static final int SEGMENT_MAGIC = 0x50574C31;   // "PWL1"
+    private static final int SNAPSHOT_MAGIC = 0x50534E31;  // "PSN1"
+    private static final byte OP_SAVE = 1;
+    private static final byte OP_DELETE = 2;
+    private static final byte OP_END = 3;
+    private static final int DEFAULT_SNAPSHOT_EVERY = 50_000;
+
+    private final File dir;
+    private final String name;
+    private final RecordCodec<T> codec;
+    private final Supplier<Collection<T>> state;
+    private final int snapshotEvery;
+
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final ExecutorService snapshotExecutor;
+    private final Object durableMonitor = new Object();
+    private long nextSeq;
+    private long durableSeq;
+    private volatile boolean failed;
+    private int sinceSnapshot;
+
+    private long generation;
+    private FileOutputStream segmentFile;
+    private DataOutputStream segment;
+    private Thread flusher;
+
+    public WriteAheadLog(String name, RecordCodec<T> codec, Supplier<Collection<T>> state) {
+        this(new File(DATA_PATH), name, codec, state, DEFAULT_SNAPSHOT_EVERY);
+    }
+
+    public WriteAheadLog(File dir, String name, RecordCodec<T> codec, Supplier<Collection<T>> state,
+                         int snapshotEvery) {
+        this.dir = dir;
+        this.name = name;
+        this.codec = codec;
+        this.state = state;
+        this.snapshotEvery = snapshotEvery;
+        this.snapshotExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "wal-snapshot-" + name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Loads the latest snapshot, replays the log segments written after it,
+     * then opens a fresh segment and starts the flusher. A torn or corrupt
+     * record ends the replay of its segment.
+     */
+    public void recover(Consumer<T> onSave, Consumer<String> onDelete) throws IOException {
+        dir.mkdirs();
+        long replayFrom = loadSnapshot(onSave);
+        long lastGeneration = replayFrom - 1;
+        for (long gen : segmentGenerations()) {
+            if (gen >= replayFrom) {
+                replaySegment(segmentPath(gen), onSave, onDelete);
+            }
+            lastGeneration = Math.max(lastGeneration, gen);
+        }
+        openSegment(lastGeneration + 1);
+
+        flusher = new Thread(this::flushLoop, "wal-flusher-" + name);
+        flusher.setDaemon(true);
+        flusher.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "wal-close-" + name));
+    }
+
+    /**
+     * Queues a save and returns its sequence number for awaitDurable(), or
+     * -1 if the journal has failed. The record is encoded immediately, so
+     * callers should append while still holding the lock that ordered the
+     * in-memory change.
+     */
+    public long appendSave(T record) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(OP_SAVE);
+            codec.write(record, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return enqueue(bytes.toByteArray());
+    }
+
+    public long appendDelete(String key) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(OP_DELETE);
+            RecordIO.writeString(out, key);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return enqueue(bytes.toByteArray());
+    }
+
+    /**
+     * Blocks until the record with the given sequence number has been
+     * forced to disk. Returns false if the journal failed to write it.
+     * An interrupt is kept for the caller but does not end the wait, so
+     * false always means the record was lost.
+     */
+    public boolean awaitDurable(long seq) {
+        if (seq < 0) return false;
+        boolean interrupted = false;
+        boolean durable;
+        synchronized (durableMonitor) {
+            while (durableSeq < seq && !failed) {
+                try {
+                    durableMonitor.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            durable = durableSeq >= seq;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return durable;
+    }
+
+    public void close() {
+        Thread t = flusher;
+        if (t == null) return;
+        queue.add(Pending.STOP);
+        try {
+            t.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        snapshotExecutor.shutdown();
+    }
+
+    private synchronized long enqueue(byte[] payload) {
+        if (failed) return -1;
+        long seq = ++nextSeq;
+        queue.add(new Pending(seq, payload));
+        if (++sinceSnapshot >= snapshotEvery) {
+            sinceSnapshot = 0;
+            queue.add(Pending.ROTATE);
+        }
+        return seq;
+    }
+
+    private void flushLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                long lastSeq = 0;
+                boolean stop = false;
+                for (Pending pending : batch) {
+                    if (pending == Pending.STOP) {
+                        stop = true;
+                    } else if (pending == Pending.ROTATE) {
+                        rotateAndSnapshot();
+                    } else {
+                        writeFrame(segment, pending.payload);
+                        lastSeq = pending.seq;
+                    }
+                }
+                // Group commit: one force for the whole batch
+                segment.flush();
+                segmentFile.getFD().sync();
+                if (lastSeq > 0) {
+                    synchronized (durableMonitor) {
+                        durableSeq = lastSeq;
+                        durableMonitor.notifyAll();
+                    }
+                }
+                batch.clear();
+                if (stop) {
+                    segment.close();
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                Logger.getInstance().log("WriteAheadLog", "Journal {} failed: {}", name, e.getMessage());
+                synchronized (durableMonitor) {
+                    failed = true;
+                    durableMonitor.notifyAll();
+                }
+                // Nothing drains the queue any more; enqueue refuses new records
+                synchronized (this) {
+                    queue.clear();
+                }
+                return;
+            }
+        }
+    }
+
+    // Runs on the flusher thread, so every record queued before the rotation
+    // is already in the old segment and already applied in memory.
+    private void rotateAndSnapshot() throws IOException {
+        segment.flush();
+        segmentFile.getFD().sync();
+        segment.close();
+        long covered = generation;
+        openSegment(covered + 1);
+        snapshotExecutor.submit(() -> {
+            try {
+                writeSnapshot(state.get(), covered + 1);
+                for (long gen : segmentGenerations()) {
+                    if (gen <= covered) {
+                        segmentPath(gen).delete();
+                    }
+                }
+                Logger.getInstance().log("WriteAheadLog", "Snapshot written for {}", name);
+            } catch (IOException e) {
+                Logger.getInstance().log("WriteAheadLog", "Snapshot of {} failed: {}", name, e.getMessage());
+            }
+        });
+    }
+
+    // Records replayed twice are harmless: saves and deletes are idempotent,
+    // so a snapshot that already contains later changes is still consistent.
+    private void writeSnapshot(Collection<T> records, long replayFrom) throws IOException {
+        File tmp = new File(dir, name + ".snap.tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(replayFrom);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream record = new DataOutputStream(bytes);
+            long count = 0;
+            for (T item : records) {
+                bytes.reset();
+                record.writeByte(OP_SAVE);
+                codec.write(item, record);
+                record.flush();
+                writeFrame(out, bytes.toByteArray());
+                count++;
+            }
+            bytes.reset();
+            record.writeByte(OP_END);
+            record.writeLong(count);
+            record.flush();
+            writeFrame(out, bytes.toByteArray());
+            out.flush();
+            file.getFD().sync();
+        }
+        File target = new File(dir, name + ".snap");
+        if (!tmp.renameTo(target)) {
+            target.delete();
+            if (!tmp.renameTo(target)) {
+                throw new IOException("Cannot replace snapshot " + target);
+            }
+        }
+    }
+
+    // Returns the first log generation the snapshot does not cover
+    private long loadSnapshot(Consumer<T> onSave) throws IOException {
+        File file = new File(dir, name + ".snap");
+        if (!file.exists()) return 0;
+        List<T> records = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            long replayFrom = in.readLong();
+            byte[] frame;
+            while ((frame = readFrame(in)) != null) {
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(frame));
+                byte op = record.readByte();
+                if (op == OP_END) {
+                    if (record.readLong() != records.size()) break;
+                    for (T item : records) {
+                        onSave.accept(item);
+                    }
+                    return replayFrom;
+                }
+                records.add(codec.read(record));
+            }
+        }
+        throw new IOException("Snapshot " + file + " is incomplete or corrupt");
+    }
+
+    private void replaySegment(File file, Consumer<T> onSave, Consumer<String> onDelete) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != SEGMENT_MAGIC) return;
+            in.readLong();
+            byte[] frame;
+            while ((frame = readFrame(in)) != null) {
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(frame));
+                byte op = record.readByte();
+                if (op == OP_SAVE) {
+                    onSave.accept(codec.read(record));
+                } else if (op == OP_DELETE) {
+                    onDelete.accept(RecordIO.readString(record));
+                }
+            }
+        } catch (EOFException e) {
+            // Empty or torn segment header: nothing to replay
+        }
+    }
+
+    private void openSegment(long gen) throws IOException {
+        generation = gen;
+        segmentFile = new FileOutputStream(segmentPath(gen));
+        segment = new DataOutputStream(new BufferedOutputStream(segmentFile, 1 << 16));
+        segment.writeInt(SEGMENT_MAGIC);
+        segment.writeLong(gen);
+        segment.flush();
+        segmentFile.getFD().sync();
+    }
+
+    private File segmentPath(long gen) {
+        return new File(dir, String.format("%s-%012d.wal", name, gen));
+    }
+
+    private List<Long> segmentGenerations() {
+        List<Long> generations = new ArrayList<>();
+        String[] files = dir.list();
+        if (files == null) return generations;
+        String prefix = name + "-";
+        for (String file : files) {
+            if (file.startsWith(prefix) && file.endsWith(".wal")) {
+                try {
+                    generations.add(Long.parseLong(file.substring(prefix.length(), file.length() - 4)));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private static void writeFrame(DataOutputStream out, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+    }
+
+    // Null at end of stream or at the first torn/corrupt frame
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length <= 0 || length > (64 << 20)) return null;
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, length);
+            return (int) crc.getValue() == checksum ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static class Pending {
+        static final Pending ROTATE = new Pending(0, null);
+        static final Pending STOP = new Pending(0, null);
+
+        final long seq;
+        final byte[] payload;
+
+        Pending(long seq, byte[] payload) {
+            this.seq = seq;
+            this.payload = payload;
+        }
+    }
+}
+
+/**
+ * Field encoding helpers shared by the record codecs.
+ */
+class RecordIO {
+    public static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static void writeDateTime(DataOutputStream out, LocalDateTime value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value.toEpochSecond(ZoneOffset.UTC));
+            out.writeInt(value.getNano());
+        }
+    }
+
+    public static LocalDateTime readDateTime(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) return null;
+        long seconds = in.readLong();
+        int nanos = in.readInt();
+        return LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+    }
+
+    public static <E extends Enum<E>> void writeEnum(DataOutputStream out, E value) throws IOException {
+        writeString(out, value == null ? null : value.name());
+    }
+
+    public static <E extends Enum<E>> E readEnum(DataInputStream in, Class<E> type) throws IOException {
+        String value = readString(in);
+        return value == null ? null : Enum.valueOf(type, value);
+    }
+}